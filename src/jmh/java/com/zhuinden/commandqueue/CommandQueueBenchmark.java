@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Benchmarks for the send, buffer and drain paths of {@link CommandQueue}.
+ *
+ * The buffering benchmarks fill a fresh queue with {@code depth} events per invocation, so the reported time is the cost
+ * of the whole fill (or drain), not of a single event.
+ *
+ * The command queue is thread-confined, so every state is {@link Scope#Thread}, which makes JMH run the setup on the
+ * benchmark thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CommandQueueBenchmark {
+    @Param({"10", "1000", "100000", "1000000"})
+    public int depth;
+
+    /**
+     * - default: {@code new CommandQueue<>()}
+     * - distinctOnly: {@link CommandQueue.Builder#distinctOnly()}
+     * - limit: {@link CommandQueue.Builder#limit(int)} with the limit set to the depth, so nothing is dropped
+     * - coalesceBy: {@link CommandQueue.Builder#coalesceBy(CommandQueue.KeySelector)} with 100 distinct keys
+     */
+    @Param({"default", "distinctOnly", "limit", "coalesceBy"})
+    public String variant;
+
+    Integer[] events;
+
+    CommandQueue.Receiver<Integer> receiver;
+
+    CommandQueue.BatchReceiver<Integer> batchReceiver;
+
+    @Setup(Level.Trial)
+    public void setUpTrial(final Blackhole blackhole) {
+        events = new Integer[depth];
+        for(int i = 0; i < depth; i++) {
+            events[i] = i; // distinct values, so distinctOnly never suppresses anything
+        }
+        receiver = new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                blackhole.consume(command);
+            }
+        };
+        batchReceiver = new CommandQueue.BatchReceiver<Integer>() {
+            @Override
+            public void receiveCommands(@Nonnull List<Integer> commands) {
+                blackhole.consume(commands.size());
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                blackhole.consume(command);
+            }
+        };
+    }
+
+    CommandQueue<Integer> createCommandQueue() {
+        if("distinctOnly".equals(variant)) {
+            return new CommandQueue.Builder<Integer>().distinctOnly().build();
+        } else if("limit".equals(variant)) {
+            return new CommandQueue.Builder<Integer>().limit(depth).build();
+        } else if("coalesceBy".equals(variant)) {
+            return new CommandQueue.Builder<Integer>().coalesceBy(new CommandQueue.KeySelector<Integer>() {
+                @Override
+                public Object getKey(@Nonnull Integer event) {
+                    return event % 100;
+                }
+            }).build();
+        } else {
+            return new CommandQueue<Integer>();
+        }
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> sendDirect() {
+        CommandQueue<Integer> commandQueue = createCommandQueue();
+        commandQueue.setReceiver(receiver);
+        for(Integer event : events) {
+            commandQueue.sendEvent(event);
+        }
+        return commandQueue;
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> enqueueWhileDetached() {
+        CommandQueue<Integer> commandQueue = createCommandQueue();
+        for(Integer event : events) {
+            commandQueue.sendEvent(event);
+        }
+        return commandQueue;
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> sendEventsDirect() {
+        CommandQueue<Integer> commandQueue = createCommandQueue();
+        commandQueue.setReceiver(receiver);
+        commandQueue.sendEvents(events);
+        return commandQueue;
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> sendEventsWhileDetached() {
+        CommandQueue<Integer> commandQueue = createCommandQueue();
+        commandQueue.sendEvents(events);
+        return commandQueue;
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> enqueueWhilePaused() {
+        CommandQueue<Integer> commandQueue = createCommandQueue();
+        commandQueue.setReceiver(receiver);
+        commandQueue.setPaused(true);
+        for(Integer event : events) {
+            commandQueue.sendEvent(event);
+        }
+        return commandQueue;
+    }
+
+    /**
+     * Prepares a filled, detached queue for the drain benchmarks. Per-invocation setup is only reliable for the larger
+     * depths, but the drain of a 10-element queue is not interesting on its own anyway.
+     */
+    @State(Scope.Thread)
+    public static class FilledQueue {
+        CommandQueue<Integer> commandQueue;
+
+        @Setup(Level.Invocation)
+        public void setUp(CommandQueueBenchmark benchmark) {
+            commandQueue = benchmark.createCommandQueue();
+            for(Integer event : benchmark.events) {
+                commandQueue.sendEvent(event);
+            }
+        }
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> drainOnSetReceiver(FilledQueue filledQueue) {
+        CommandQueue<Integer> commandQueue = filledQueue.commandQueue;
+        commandQueue.setReceiver(receiver);
+        return commandQueue;
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> drainOnSetBatchReceiver(FilledQueue filledQueue) {
+        CommandQueue<Integer> commandQueue = filledQueue.commandQueue;
+        commandQueue.setReceiver(batchReceiver);
+        return commandQueue;
+    }
+
+    /**
+     * Prepares a filled, paused queue that already has a receiver.
+     */
+    @State(Scope.Thread)
+    public static class PausedQueue {
+        CommandQueue<Integer> commandQueue;
+
+        @Setup(Level.Invocation)
+        public void setUp(CommandQueueBenchmark benchmark) {
+            commandQueue = benchmark.createCommandQueue();
+            commandQueue.setReceiver(benchmark.receiver);
+            commandQueue.setPaused(true);
+            for(Integer event : benchmark.events) {
+                commandQueue.sendEvent(event);
+            }
+        }
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> drainOnUnpause(PausedQueue pausedQueue) {
+        CommandQueue<Integer> commandQueue = pausedQueue.commandQueue;
+        commandQueue.setPaused(false);
+        return commandQueue;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks for the inbox of {@link ConcurrentCommandQueue}, with three producers and the single consumer.
+ *
+ * The producers wait while the inbox holds {@link #CAPACITY} elements, so the inbox stays small, and the score measures
+ * the contention between the producers and the consumer instead of allocating an ever growing backlog. Each thread
+ * needs a core of its own to show that contention, so run it on at least four cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class MpscLinkedQueueBenchmark {
+    private static final int CAPACITY = 1024;
+
+    private final MpscLinkedQueue<Integer> queue = new MpscLinkedQueue<Integer>();
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private final Integer element = 42;
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(3)
+    public void offer() {
+        while(size.get() >= CAPACITY) {
+            Thread.yield();
+        }
+        size.incrementAndGet();
+        queue.offer(element);
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(1)
+    public Integer poll() {
+        Integer polled = queue.poll();
+        if(polled != null) {
+            size.decrementAndGet();
+        }
+        return polled;
+    }
+}
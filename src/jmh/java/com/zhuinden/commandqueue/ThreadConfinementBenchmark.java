@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Benchmarks for the thread confinement check that every public method of {@link CommandQueue} runs. Run with
+ * {@code -jvmArgsAppend -Dcom.zhuinden.commandqueue.debugThreadConfinement=true} to measure DEBUG_ONLY with the check
+ * enabled.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadConfinementBenchmark {
+    @Param({"STRICT", "DEBUG_ONLY", "HANDOFF"})
+    public String threadConfinement;
+
+    CommandQueue<Integer> commandQueue;
+
+    final Integer event = 42;
+
+    @Setup(Level.Trial)
+    public void setUp(final Blackhole blackhole) {
+        commandQueue = new CommandQueue.Builder<Integer>()
+                .threadConfinement(CommandQueue.ThreadConfinement.valueOf(threadConfinement))
+                .build();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                blackhole.consume(command);
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean hasReceiver() {
+        return commandQueue.hasReceiver();
+    }
+
+    @Benchmark
+    public CommandQueue<Integer> sendEvent() {
+        commandQueue.sendEvent(event);
+        return commandQueue;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Delivers the events of a command queue to its receivers on a delivery executor.
+ *
+ * The owner thread hands off events into a lock-free queue, and at most one delivery task is in flight at a time: it is
+ * submitted when the first event is handed off, and it delivers every event that is handed off while it runs, so events
+ * are delivered in order, and a burst of events costs a single submission. Consecutive events of a
+ * {@link CommandQueue.BatchReceiver} are delivered as batches.
+ *
+ * The number of events that are handed off but not delivered yet is bounded by the handoff capacity. Once the delivery
+ * task frees up capacity that the owner thread was waiting for, the resume task is posted to the resume executor.
+ *
+ * @param <T> the type of the event
+ */
+final class AsyncDelivery<T>
+        implements Runnable {
+    private static final class ReceiverChange<T> {
+        final CommandQueue.Receiver<T> receiver;
+
+        ReceiverChange(CommandQueue.Receiver<T> receiver) {
+            this.receiver = receiver;
+        }
+    }
+
+    // makes the delivery task drop the receiver once the events handed off before it are delivered
+    private static final ReceiverChange<Object> RELEASE_RECEIVER = new ReceiverChange<Object>(null);
+
+    private final Executor deliveryExecutor;
+    private final int handoffCapacity;
+    private final int maxBatchSize;
+
+    @Nullable
+    private final Executor resumeExecutor;
+    @Nullable
+    private final Runnable resumeTask;
+
+    private final MpscLinkedQueue<Object> handoff = new MpscLinkedQueue<Object>(); // events, or receiver changes
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final AtomicBoolean isDeliveryScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean isWaitingForCapacity = new AtomicBoolean(false);
+
+    private CommandQueue.Receiver<T> lastHandedOffReceiver; // only accessed by the owner thread
+
+    private CommandQueue.Receiver<T> currentReceiver; // only accessed by the delivery task, null once released
+    private final ArrayList<T> batch = new ArrayList<T>();
+    private final List<T> batchView = Collections.unmodifiableList(batch);
+
+    /**
+     * Creates the async delivery.
+     *
+     * @param deliveryExecutor the executor that runs the delivery task
+     * @param handoffCapacity  the maximum number of events handed off but not yet delivered
+     * @param maxBatchSize     the maximum number of events passed to a batch receiver at once
+     * @param resumeExecutor   the executor that runs the resume task on the owner thread, or null if unbounded
+     * @param resumeTask       the task that continues handing off events, or null if unbounded
+     */
+    AsyncDelivery(@Nonnull Executor deliveryExecutor, int handoffCapacity, int maxBatchSize,
+                  @Nullable Executor resumeExecutor, @Nullable Runnable resumeTask) {
+        this.deliveryExecutor = deliveryExecutor;
+        this.handoffCapacity = handoffCapacity;
+        this.maxBatchSize = maxBatchSize;
+        this.resumeExecutor = resumeExecutor;
+        this.resumeTask = resumeTask;
+    }
+
+    /**
+     * Returns if more events can be handed off. If not, the resume task is posted once capacity is freed up. Must only
+     * be called by the owner thread.
+     *
+     * @return whether there is capacity
+     */
+    boolean hasCapacity() {
+        if(pendingCount.get() < handoffCapacity) {
+            return true;
+        }
+        isWaitingForCapacity.set(true);
+        return pendingCount.get() < handoffCapacity; // the delivery task might have missed the flag
+    }
+
+    /**
+     * Returns if the handoff is full.
+     *
+     * @return whether the handoff is full
+     */
+    boolean isFull() {
+        return pendingCount.get() >= handoffCapacity;
+    }
+
+    /**
+     * Hands off the event to be delivered to the receiver. Must only be called by the owner thread.
+     *
+     * @param receiver the receiver
+     * @param event    the event
+     */
+    void handOff(@Nonnull CommandQueue.Receiver<T> receiver, @Nonnull T event) {
+        if(receiver != lastHandedOffReceiver) {
+            handoff.offer(new ReceiverChange<T>(receiver));
+            lastHandedOffReceiver = receiver;
+        }
+        pendingCount.incrementAndGet();
+        handoff.offer(event);
+        scheduleDelivery();
+    }
+
+    /**
+     * Makes the delivery task release the last receiver once it delivered the events that were handed off to it, so that
+     * a detached or replaced receiver can be garbage collected. Must only be called by the owner thread.
+     */
+    void releaseReceiver() {
+        if(lastHandedOffReceiver == null) {
+            return;
+        }
+        lastHandedOffReceiver = null;
+        handoff.offer(RELEASE_RECEIVER);
+        scheduleDelivery();
+    }
+
+    @Override
+    public void run() {
+        try {
+            deliverEvents();
+        } finally {
+            isDeliveryScheduled.set(false);
+            if(!handoff.isEmpty()) {
+                scheduleDelivery(); // an event was handed off after the last poll
+            }
+        }
+    }
+
+    private void scheduleDelivery() {
+        if(isDeliveryScheduled.compareAndSet(false, true)) {
+            try {
+                deliveryExecutor.execute(this);
+            } catch(RuntimeException e) {
+                isDeliveryScheduled.set(false); // the next handoff schedules the delivery again
+                throw e;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deliverEvents() {
+        Object element;
+        while((element = handoff.poll()) != null) {
+            if(element instanceof ReceiverChange) {
+                deliverBatch();
+                currentReceiver = ((ReceiverChange<T>) element).receiver;
+            } else if(currentReceiver instanceof CommandQueue.BatchReceiver) {
+                batch.add((T) element);
+                if(batch.size() >= maxBatchSize) {
+                    deliverBatch();
+                }
+            } else {
+                onDelivered(1);
+                currentReceiver.receiveCommand((T) element);
+            }
+        }
+        deliverBatch();
+    }
+
+    private void deliverBatch() {
+        if(batch.isEmpty()) {
+            return;
+        }
+        try {
+            onDelivered(batch.size());
+            ((CommandQueue.BatchReceiver<T>) currentReceiver).receiveCommands(batchView);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void onDelivered(int count) {
+        int newPendingCount = pendingCount.addAndGet(-count);
+        if(resumeExecutor != null && newPendingCount < handoffCapacity
+                && isWaitingForCapacity.compareAndSet(true, false)) {
+            resumeExecutor.execute(resumeTask);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The free list of a command queue that reuses its command objects: a stack of recycled commands, so the most recently
+ * recycled (and therefore most likely cached) command is handed out first.
+ *
+ * Once the pool holds its maximum number of commands, further recycled commands are left to the garbage collector.
+ *
+ * Not thread-safe: it is only accessed on the thread that owns the command queue.
+ *
+ * @param <T> the type of the event
+ */
+final class CommandPool<T> {
+    private final CommandQueue.Recycler<T> recycler;
+    private final Object[] commands;
+
+    private int size;
+
+    /**
+     * Creates the pool.
+     *
+     * @param recycler    the recycler that creates and resets the commands
+     * @param maxPoolSize the maximum number of recycled commands that are kept
+     */
+    CommandPool(@Nonnull CommandQueue.Recycler<T> recycler, int maxPoolSize) {
+        this.recycler = recycler;
+        this.commands = new Object[maxPoolSize];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a recycled command, or a new one if the pool is empty.
+     *
+     * @return the command
+     */
+    @SuppressWarnings("unchecked")
+    @Nonnull
+    T obtain() {
+        if(size == 0) {
+            return recycler.create();
+        }
+        T command = (T) commands[--size];
+        commands[size] = null;
+        return command;
+    }
+
+    /**
+     * Resets the command, and keeps it for reuse if the pool is not full.
+     *
+     * @param command the command, which must no longer be referenced by the command queue
+     */
+    void recycle(@Nonnull T command) {
+        if(size == commands.length) {
+            return;
+        }
+        recycler.recycle(command);
+        commands[size++] = command;
+    }
+}
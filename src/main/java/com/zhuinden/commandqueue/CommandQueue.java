@@ -15,7 +15,19 @@
  */
 package com.zhuinden.commandqueue;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -27,12 +39,92 @@ import javax.annotation.Nullable;
  * @param <T> the type of the event
  */
 public class CommandQueue<T> {
-    private final long threadId = Thread.currentThread().getId();
+    private Thread ownerThread = Thread.currentThread();
+    private ThreadConfinement threadConfinement = ThreadConfinement.STRICT;
+    private boolean verifiesThread = true;
 
-    private final ConcurrentLinkedQueue<T> queuedEvents = new ConcurrentLinkedQueue<T>();
+    private RingBuffer<T> queuedEvents = new RingBuffer<T>();
     private boolean paused;
     private boolean distinctOnly;
-    private int limit = -1;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private Executor drainExecutor;
+    private int maxEventsPerDrain = Integer.MAX_VALUE;
+    private long maxDrainNanos = Long.MAX_VALUE;
+    private Clock clock = Clock.SYSTEM;
+    private KeySelector<T> coalescingKeySelector;
+    private HashMap<Object, Long> coalescingIndex;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private OverflowListener<T> overflowListener;
+    private Metrics metrics; // null unless metrics are recorded
+    private PersistentLog<T> persistentLog; // null unless the queue is persistent
+    private SpillBuffer<T> spillBuffer; // null unless the queue spills to disk
+    private int spillThreshold;
+    private PriorityLanes<T> priorityLanes; // null unless the queue has priority lanes
+    private PriorityClassifier<T> priorityClassifier;
+    private AsyncDelivery<T> asyncDelivery; // null unless events are delivered on a delivery executor
+
+    private CommandPool<T> commandPool; // null unless commands are pooled
+
+    private TimeToLive<T> timeToLive; // null unless events expire
+    private long expiredEventCount;
+    private long lastDequeuedStamp;
+    private int lastDequeuedPriority;
+
+    private static final class ParkedEvent<T> {
+        final T event;
+        final long order;
+        final long sequence;
+        final long stamp;
+        final int priority; // the lane of the event, if the queue has priority lanes
+
+        ParkedEvent(T event, long order, long sequence, long stamp, int priority) {
+            this.event = event;
+            this.order = order;
+            this.sequence = sequence;
+            this.stamp = stamp;
+            this.priority = priority;
+        }
+    }
+
+    private static final Comparator<ParkedEvent<?>> PARKED_ORDER = new Comparator<ParkedEvent<?>>() {
+        @Override
+        public int compare(ParkedEvent<?> first, ParkedEvent<?> second) {
+            return first.order < second.order ? -1 : (first.order == second.order ? 0 : 1);
+        }
+    };
+
+    // events declined by a selective receiver, by class, each class in order
+    private HashMap<Class<?>, ArrayDeque<ParkedEvent<T>>> parkedEvents;
+    private int parkedCount;
+    private long nextParkedOrder;
+
+    private Scheduler scheduler; // null unless delayed events are supported
+    private TimerWheel<T> timerWheel;
+    private ArrayList<TimerWheel.Timer<T>> dueTimers;
+    private long scheduledWakeupNanos = Long.MAX_VALUE;
+    private boolean isProcessingTimers = false;
+    private Runnable timerTask;
+    private KeySelector<T> rateLimitKeySelector;
+    private long rateLimitWindowNanos;
+    private boolean isDebounce; // debounce if true, throttle if false
+    private HashMap<Object, TimerWheel.Timer<T>> rateLimitedKeys;
+
+    /**
+     * The duration of a tick of the timer wheel that holds delayed events.
+     */
+    static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    /**
+     * The default maximum number of commands that are passed to a {@link BatchReceiver} at once.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /**
+     * The system property that enables the thread check of the {@link ThreadConfinement#DEBUG_ONLY} command queues.
+     */
+    public static final String DEBUG_THREAD_CONFINEMENT_PROPERTY = "com.zhuinden.commandqueue.debugThreadConfinement";
+
+    private static final boolean DEBUG_THREAD_CONFINEMENT = Boolean.getBoolean(DEBUG_THREAD_CONFINEMENT_PROPERTY);
 
     public CommandQueue() {
     }
@@ -42,6 +134,66 @@ public class CommandQueue<T> {
 
         private int limit = -1;
 
+        private boolean multiProducer = false;
+
+        private Executor consumerExecutor = null;
+
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+        private Executor drainExecutor = null;
+
+        private int maxEventsPerDrain = Integer.MAX_VALUE;
+
+        private long maxDrainNanos = Long.MAX_VALUE;
+
+        private Clock clock = Clock.SYSTEM;
+
+        private KeySelector<T> coalescingKeySelector = null;
+
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+        private OverflowListener<T> overflowListener = null;
+
+        private boolean recordMetrics = false;
+
+        private File persistentFile = null;
+
+        private Codec<T> persistentCodec = null;
+
+        private int syncEvery = 0;
+
+        private int spillThreshold = -1;
+
+        private Codec<T> spillCodec = null;
+
+        private File spillDirectory = null;
+
+        private int laneCount = 0;
+
+        private int[] laneWeights = null;
+
+        private PriorityClassifier<T> priorityClassifier = null;
+
+        private Executor deliveryExecutor = null;
+
+        private int handoffCapacity = Integer.MAX_VALUE;
+
+        private Scheduler scheduler = null;
+
+        private KeySelector<T> rateLimitKeySelector = null;
+
+        private long rateLimitWindowNanos = 0L;
+
+        private boolean isDebounce = false;
+
+        private TimeToLive<T> timeToLive = null;
+
+        private Recycler<T> recycler = null;
+
+        private int maxPoolSize = 0;
+
+        private ThreadConfinement threadConfinement = ThreadConfinement.STRICT;
+
         public Builder<T> distinctOnly() {
             this.distinctOnly = true;
             return this;
@@ -52,63 +204,1550 @@ public class CommandQueue<T> {
             return this;
         }
 
+        /**
+         * Instructs the command queue to hold at most the given number of enqueued events, and sets what happens to an
+         * event that does not fit.
+         *
+         * @param limit          the maximum number of enqueued events
+         * @param overflowPolicy the overflow policy
+         */
+        public Builder<T> limit(int limit, @Nonnull OverflowPolicy overflowPolicy) {
+            //noinspection ConstantConditions
+            if(overflowPolicy == null) {
+                throw new IllegalArgumentException("Overflow policy cannot be null");
+            }
+            this.limit = limit;
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the listener that is notified of every event dropped because of the {@link #limit(int)}.
+         *
+         * @param overflowListener the overflow listener
+         */
+        public Builder<T> onOverflow(@Nonnull OverflowListener<T> overflowListener) {
+            //noinspection ConstantConditions
+            if(overflowListener == null) {
+                throw new IllegalArgumentException("Overflow listener cannot be null");
+            }
+            this.overflowListener = overflowListener;
+            return this;
+        }
+
+        /**
+         * Allows sending events from any thread, see {@link ConcurrentCommandQueue}.
+         *
+         * Events sent from other threads are delivered when the owner thread calls the command queue next. They are
+         * subject to the {@link #limit(int, OverflowPolicy)} only then, which therefore cannot use
+         * {@link OverflowPolicy#REJECT}.
+         */
+        public Builder<T> multiProducer() {
+            this.multiProducer = true;
+            return this;
+        }
+
+        /**
+         * Allows sending events from any thread, see {@link ConcurrentCommandQueue}.
+         *
+         * Events sent from other threads are delivered by a task posted to the consumer executor, which must run it on
+         * the thread where the command queue was created (for example, by posting to that thread's Handler). They are
+         * subject to the {@link #limit(int, OverflowPolicy)} only then, which therefore cannot use
+         * {@link OverflowPolicy#REJECT}.
+         *
+         * @param consumerExecutor the executor that runs tasks on the owner thread
+         */
+        public Builder<T> multiProducer(@Nonnull Executor consumerExecutor) {
+            //noinspection ConstantConditions
+            if(consumerExecutor == null) {
+                throw new IllegalArgumentException("Consumer executor cannot be null");
+            }
+            this.multiProducer = true;
+            this.consumerExecutor = consumerExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of enqueued commands that are passed to a {@link BatchReceiver} in a single call.
+         *
+         * @param maxBatchSize the maximum batch size, must be positive
+         */
+        public Builder<T> maxBatchSize(int maxBatchSize) {
+            if(maxBatchSize <= 0) {
+                throw new IllegalArgumentException("Max batch size must be positive, but was [" + maxBatchSize + "]");
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the executor that continues draining the enqueued events once a drain has used up its budget, see
+         * {@link #maxEventsPerDrain(int)} and {@link #maxDrainDuration(long, TimeUnit)}.
+         *
+         * The executor must run the task on the thread where the command queue was created (for example, by posting to
+         * that thread's Handler). Until the enqueued events are drained, new events are enqueued after them.
+         *
+         * @param drainExecutor the executor that runs tasks on the owner thread
+         */
+        public Builder<T> drainExecutor(@Nonnull Executor drainExecutor) {
+            //noinspection ConstantConditions
+            if(drainExecutor == null) {
+                throw new IllegalArgumentException("Drain executor cannot be null");
+            }
+            this.drainExecutor = drainExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of enqueued events that are emitted in a single drain. Requires a
+         * {@link #drainExecutor(Executor)}.
+         *
+         * @param maxEventsPerDrain the maximum number of events, must be positive
+         */
+        public Builder<T> maxEventsPerDrain(int maxEventsPerDrain) {
+            if(maxEventsPerDrain <= 0) {
+                throw new IllegalArgumentException(
+                        "Max events per drain must be positive, but was [" + maxEventsPerDrain + "]");
+            }
+            this.maxEventsPerDrain = maxEventsPerDrain;
+            return this;
+        }
+
+        /**
+         * Sets how long a single drain can emit enqueued events, as measured by the {@link #clock(Clock)}. At least one
+         * event is emitted per drain. Requires a {@link #drainExecutor(Executor)}.
+         *
+         * @param maxDrainDuration the maximum duration, must be positive
+         * @param timeUnit         the time unit of the duration
+         */
+        public Builder<T> maxDrainDuration(long maxDrainDuration, @Nonnull TimeUnit timeUnit) {
+            if(maxDrainDuration <= 0) {
+                throw new IllegalArgumentException(
+                        "Max drain duration must be positive, but was [" + maxDrainDuration + "]");
+            }
+            this.maxDrainNanos = timeUnit.toNanos(maxDrainDuration);
+            return this;
+        }
+
+        /**
+         * Sets the clock used to measure time. Defaults to {@link Clock#SYSTEM}.
+         *
+         * @param clock the clock
+         */
+        public Builder<T> clock(@Nonnull Clock clock) {
+            //noinspection ConstantConditions
+            if(clock == null) {
+                throw new IllegalArgumentException("Clock cannot be null");
+            }
+            this.clock = clock;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to keep only the latest enqueued event for each key. An enqueued event is replaced
+         * in place when a new event with the same key is enqueued, so it keeps its position in the queue.
+         *
+         * Events for which the key selector returns null are always enqueued.
+         *
+         * @param keySelector the key selector
+         */
+        public Builder<T> coalesceBy(@Nonnull KeySelector<T> keySelector) {
+            //noinspection ConstantConditions
+            if(keySelector == null) {
+                throw new IllegalArgumentException("Key selector cannot be null");
+            }
+            this.coalescingKeySelector = keySelector;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to record {@link Metrics}, see {@link CommandQueue#getMetrics()}.
+         *
+         * Queued time is measured with the {@link #clock(Clock)}.
+         */
+        public Builder<T> recordMetrics() {
+            this.recordMetrics = true;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to persist enqueued events into the given file, so that they survive the process
+         * being killed. The events in the file are restored into the queue when it is built.
+         *
+         * Events are appended to a memory-mapped log when they are enqueued, and acknowledged once they are delivered
+         * (so an event that was being delivered when the process died is delivered again). An event whose receiver
+         * throws is acknowledged too, as it is not delivered again either. Events sent directly to a receiver are not
+         * persisted. A replaced event of {@link #coalesceBy(KeySelector)} is restored at the end of
+         * the queue. Restored events are subject to the {@link #limit(int, OverflowPolicy)}, which therefore cannot use
+         * {@link OverflowPolicy#REJECT}.
+         *
+         * Only one command queue can use the file at a time.
+         *
+         * @param file  the file
+         * @param codec the codec that encodes and decodes the events
+         */
+        public Builder<T> persistent(@Nonnull File file, @Nonnull Codec<T> codec) {
+            //noinspection ConstantConditions
+            if(file == null) {
+                throw new IllegalArgumentException("File cannot be null");
+            }
+            //noinspection ConstantConditions
+            if(codec == null) {
+                throw new IllegalArgumentException("Codec cannot be null");
+            }
+            this.persistentFile = file;
+            this.persistentCodec = codec;
+            return this;
+        }
+
+        /**
+         * Sets after how many appended events the {@link #persistent(File, Codec)} log is forced to the storage device.
+         *
+         * Writes to the log survive the process being killed even without this, this only protects against losing the
+         * operating system. Defaults to 0, which means that the log is never forced explicitly.
+         *
+         * @param syncEvery the number of appended events per sync, or 0
+         */
+        public Builder<T> syncEvery(int syncEvery) {
+            if(syncEvery < 0) {
+                throw new IllegalArgumentException("Sync every must not be negative, but was [" + syncEvery + "]");
+            }
+            this.syncEvery = syncEvery;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to keep at most the given number of enqueued events in memory, and to write the
+         * rest to temporary files in the default temporary directory. Spilled events are read back in order as the
+         * events in memory are emitted.
+         *
+         * Spilled events are not durable, see {@link #persistent(File, Codec)} for that: the files of the events that are
+         * still spilled are deleted by {@link CommandQueue#close()}. {@link #coalesceBy(KeySelector)}
+         * only replaces events that are held in memory.
+         *
+         * @param memoryThreshold the maximum number of enqueued events held in memory, must be positive
+         * @param codec           the codec that encodes and decodes the events
+         */
+        public Builder<T> spillToDisk(int memoryThreshold, @Nonnull Codec<T> codec) {
+            return spillToDisk(memoryThreshold, codec, null);
+        }
+
+        /**
+         * Instructs the command queue to keep at most the given number of enqueued events in memory, and to write the
+         * rest to temporary files in the given directory, see {@link #spillToDisk(int, Codec)}.
+         *
+         * @param memoryThreshold the maximum number of enqueued events held in memory, must be positive
+         * @param codec           the codec that encodes and decodes the events
+         * @param directory       the directory of the temporary files, or null for the default temporary directory
+         */
+        public Builder<T> spillToDisk(int memoryThreshold, @Nonnull Codec<T> codec, @Nullable File directory) {
+            if(memoryThreshold <= 0) {
+                throw new IllegalArgumentException("Memory threshold must be positive, but was [" + memoryThreshold + "]");
+            }
+            //noinspection ConstantConditions
+            if(codec == null) {
+                throw new IllegalArgumentException("Codec cannot be null");
+            }
+            this.spillThreshold = memoryThreshold;
+            this.spillCodec = codec;
+            this.spillDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to enqueue events into the given number of FIFO lanes, where lane 0 has the
+         * highest priority. Enqueued events are emitted from the highest priority lane that is not empty.
+         *
+         * The lane of an event is set by {@link CommandQueue#sendEvent(Object, int)}, otherwise by the
+         * {@link #priorityClassifier(PriorityClassifier)}. Events without a priority go to the lowest priority lane.
+         * Events declined by a {@link SelectiveReceiver} keep their lane, and go back to its head once a receiver
+         * accepts them.
+         *
+         * @param laneCount the number of lanes, must be at least 2
+         */
+        public Builder<T> priorityLanes(int laneCount) {
+            if(laneCount < 2) {
+                throw new IllegalArgumentException("Lane count must be at least 2, but was [" + laneCount + "]");
+            }
+            this.laneCount = laneCount;
+            this.laneWeights = null;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to enqueue events into one FIFO lane per weight, where lane 0 has the highest
+         * priority, see {@link #priorityLanes(int)}. Enqueued events are emitted in weighted round-robin: each lane in
+         * turn emits up to its weight of events, so lower priority lanes are not starved.
+         *
+         * @param weights the weight of each lane, there must be at least 2, and each must be positive
+         */
+        public Builder<T> weightedPriorityLanes(@Nonnull int... weights) {
+            //noinspection ConstantConditions
+            if(weights == null || weights.length < 2) {
+                throw new IllegalArgumentException("There must be at least 2 lane weights");
+            }
+            for(int weight : weights) {
+                if(weight <= 0) {
+                    throw new IllegalArgumentException("Lane weights must be positive, but was [" + weight + "]");
+                }
+            }
+            this.laneCount = weights.length;
+            this.laneWeights = weights.clone();
+            return this;
+        }
+
+        /**
+         * Sets the classifier that chooses the lane of the events sent without an explicit priority. Requires
+         * {@link #priorityLanes(int)} or {@link #weightedPriorityLanes(int...)}.
+         *
+         * @param priorityClassifier the priority classifier
+         */
+        public Builder<T> priorityClassifier(@Nonnull PriorityClassifier<T> priorityClassifier) {
+            //noinspection ConstantConditions
+            if(priorityClassifier == null) {
+                throw new IllegalArgumentException("Priority classifier cannot be null");
+            }
+            this.priorityClassifier = priorityClassifier;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to deliver events to the receiver on the given executor, instead of on the stack
+         * of the sender. Any executor works, including a virtual-thread-per-task executor: there is at most one delivery
+         * task in flight, so events are still delivered in order, one at a time. A {@link BatchReceiver} receives
+         * every event in batches.
+         *
+         * Events are delivered to the receiver that was set when they were emitted, even if it is detached before the
+         * delivery task runs.
+         *
+         * @param deliveryExecutor the executor that delivers the events
+         */
+        public Builder<T> deliverOn(@Nonnull Executor deliveryExecutor) {
+            return deliverOn(deliveryExecutor, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Instructs the command queue to deliver events on the given executor, see {@link #deliverOn(Executor)}, with
+         * at most the given number of events handed off to the executor but not delivered yet.
+         *
+         * While the handoff is full, the command queue enqueues new events, as if it was paused (so the {@link #limit(int)}
+         * applies to them). Once the receiver catches up, the enqueued events are handed off from the
+         * {@link #drainExecutor(Executor)}, which is therefore required.
+         *
+         * @param deliveryExecutor the executor that delivers the events
+         * @param handoffCapacity  the maximum number of handed off events, must be positive
+         */
+        public Builder<T> deliverOn(@Nonnull Executor deliveryExecutor, int handoffCapacity) {
+            //noinspection ConstantConditions
+            if(deliveryExecutor == null) {
+                throw new IllegalArgumentException("Delivery executor cannot be null");
+            }
+            if(handoffCapacity <= 0) {
+                throw new IllegalArgumentException("Handoff capacity must be positive, but was [" + handoffCapacity + "]");
+            }
+            this.deliveryExecutor = deliveryExecutor;
+            this.handoffCapacity = handoffCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the scheduler that wakes the command queue up when delayed events are due, which enables
+         * {@link CommandQueue#sendEventDelayed(Object, long, TimeUnit)}, {@link #debounceBy(KeySelector, long, TimeUnit)}
+         * and {@link #throttleBy(KeySelector, long, TimeUnit)}.
+         *
+         * Delayed events are held in a timer wheel measured by the {@link #clock(Clock)}, with a resolution of one
+         * millisecond, and the scheduler is only asked to run a task when the wheel has work, not for every event.
+         *
+         * @param scheduler the scheduler
+         */
+        public Builder<T> scheduler(@Nonnull Scheduler scheduler) {
+            //noinspection ConstantConditions
+            if(scheduler == null) {
+                throw new IllegalArgumentException("Scheduler cannot be null");
+            }
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to debounce the events sent with {@link CommandQueue#sendEvent(Object)} by key: an
+         * event is held back for the given window, and replaced if another event with the same key is sent in the
+         * meantime, which restarts the window. Requires a {@link #scheduler(Scheduler)}.
+         *
+         * Events for which the key selector returns null are sent immediately.
+         *
+         * @param keySelector the key selector
+         * @param window      the debounce window, must be positive
+         * @param timeUnit    the time unit of the window
+         */
+        public Builder<T> debounceBy(@Nonnull KeySelector<T> keySelector, long window, @Nonnull TimeUnit timeUnit) {
+            setRateLimit(keySelector, window, timeUnit);
+            this.isDebounce = true;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to throttle the events sent with {@link CommandQueue#sendEvent(Object)} by key: an
+         * event is sent immediately, and other events with the same key are discarded until the given window has
+         * passed. Requires a {@link #scheduler(Scheduler)}.
+         *
+         * Events for which the key selector returns null are never throttled.
+         *
+         * @param keySelector the key selector
+         * @param window      the throttle window, must be positive
+         * @param timeUnit    the time unit of the window
+         */
+        public Builder<T> throttleBy(@Nonnull KeySelector<T> keySelector, long window, @Nonnull TimeUnit timeUnit) {
+            setRateLimit(keySelector, window, timeUnit);
+            this.isDebounce = false;
+            return this;
+        }
+
+        private void setRateLimit(@Nonnull KeySelector<T> keySelector, long window, @Nonnull TimeUnit timeUnit) {
+            //noinspection ConstantConditions
+            if(keySelector == null) {
+                throw new IllegalArgumentException("Key selector cannot be null");
+            }
+            if(window <= 0) {
+                throw new IllegalArgumentException("Window must be positive, but was [" + window + "]");
+            }
+            this.rateLimitKeySelector = keySelector;
+            this.rateLimitWindowNanos = timeUnit.toNanos(window);
+        }
+
+        /**
+         * Instructs the command queue to discard the enqueued events that are older than the given time to live, as
+         * measured by the {@link #clock(Clock)}, instead of emitting them.
+         *
+         * @param timeToLive the time to live, must be positive
+         * @param timeUnit   the time unit of the time to live
+         */
+        public Builder<T> timeToLive(long timeToLive, @Nonnull TimeUnit timeUnit) {
+            if(timeToLive <= 0) {
+                throw new IllegalArgumentException("Time to live must be positive, but was [" + timeToLive + "]");
+            }
+            final long timeToLiveNanos = timeUnit.toNanos(timeToLive);
+            return timeToLive(new TimeToLive<T>() {
+                @Override
+                public long getTimeToLiveNanos(@Nonnull T event) {
+                    return timeToLiveNanos;
+                }
+            });
+        }
+
+        /**
+         * Instructs the command queue to discard the enqueued events that are older than their own time to live, as
+         * measured by the {@link #clock(Clock)}, instead of emitting them.
+         *
+         * Expired events are discarded when they would be emitted. When the buffer (or a priority lane) is about to grow,
+         * the expired events at its head (or at the head of every lane) are discarded in bulk. See
+         * {@link CommandQueue#getExpiredEventCount()}.
+         *
+         * @param timeToLive the time to live of each event
+         */
+        public Builder<T> timeToLive(@Nonnull TimeToLive<T> timeToLive) {
+            //noinspection ConstantConditions
+            if(timeToLive == null) {
+                throw new IllegalArgumentException("Time to live cannot be null");
+            }
+            this.timeToLive = timeToLive;
+            return this;
+        }
+
+        /**
+         * Instructs the command queue to reuse its command objects: {@link CommandQueue#obtainCommand()} hands out a
+         * recycled command if there is one, and the command queue recycles every command once it is done with it, so
+         * sending and delivering commands does not allocate once the pool is warmed up.
+         *
+         * A command is recycled once {@link Receiver#receiveCommand(Object)} returns, or once
+         * {@link BatchReceiver#receiveCommands(List)} returns for its batch, so receivers must not keep a reference to
+         * it. Commands that are dropped, expired, replaced, throttled or spilled to disk are recycled too. A command must
+         * not be sent again after it is sent, until it is obtained again.
+         *
+         * @param recycler    the recycler that creates and resets the commands
+         * @param maxPoolSize the maximum number of recycled commands that are kept, must be positive
+         */
+        public Builder<T> pooled(@Nonnull Recycler<T> recycler, int maxPoolSize) {
+            //noinspection ConstantConditions
+            if(recycler == null) {
+                throw new IllegalArgumentException("Recycler cannot be null");
+            }
+            if(maxPoolSize <= 0) {
+                throw new IllegalArgumentException("Max pool size must be positive, but was [" + maxPoolSize + "]");
+            }
+            this.recycler = recycler;
+            this.maxPoolSize = maxPoolSize;
+            return this;
+        }
+
+        /**
+         * Sets how the command queue verifies that it is accessed on the thread that owns it. The default is
+         * {@link ThreadConfinement#STRICT}.
+         *
+         * @param threadConfinement the thread confinement
+         */
+        public Builder<T> threadConfinement(@Nonnull ThreadConfinement threadConfinement) {
+            //noinspection ConstantConditions
+            if(threadConfinement == null) {
+                throw new IllegalArgumentException("Thread confinement cannot be null");
+            }
+            this.threadConfinement = threadConfinement;
+            return this;
+        }
+
         public CommandQueue<T> build() {
-            CommandQueue<T> commandQueue = new CommandQueue<T>();
+            if(drainExecutor == null && (maxEventsPerDrain != Integer.MAX_VALUE || maxDrainNanos != Long.MAX_VALUE)) {
+                throw new IllegalStateException("A drain budget requires a drain executor to continue draining");
+            }
+            if(spillCodec != null && (limit != -1 || persistentFile != null)) {
+                throw new IllegalStateException("spillToDisk() cannot be combined with limit() or persistent()");
+            }
+            if(deliveryExecutor != null && handoffCapacity != Integer.MAX_VALUE && drainExecutor == null) {
+                throw new IllegalStateException("A bounded handoff capacity requires a drain executor to resume delivery");
+            }
+            if(persistentFile != null && limit != -1 && overflowPolicy == OverflowPolicy.REJECT) {
+                throw new IllegalStateException(
+                        "persistent() cannot be combined with the REJECT overflow policy, restoring the events would fail");
+            }
+            if(deliveryExecutor != null && persistentFile != null) {
+                throw new IllegalStateException(
+                        "deliverOn() cannot be combined with persistent(), events would be acknowledged before delivery");
+            }
+            if(rateLimitKeySelector != null && scheduler == null) {
+                throw new IllegalStateException("debounceBy() and throttleBy() require a scheduler");
+            }
+            if(recycler != null && (distinctOnly || multiProducer || deliveryExecutor != null)) {
+                throw new IllegalStateException(
+                        "pooled() cannot be combined with distinctOnly(), multiProducer() or deliverOn(), "
+                                + "they keep references to sent commands");
+            }
+            if(multiProducer && limit != -1 && overflowPolicy == OverflowPolicy.REJECT) {
+                throw new IllegalStateException(
+                        "multiProducer() cannot be combined with the REJECT overflow policy, "
+                                + "the events of other threads are only enqueued once the owner thread drains them");
+            }
+            if(threadConfinement == ThreadConfinement.HANDOFF && multiProducer) {
+                throw new IllegalStateException(
+                        "HANDOFF thread confinement cannot be combined with multiProducer(), "
+                                + "producers route their events by the owner thread");
+            }
+            if(priorityClassifier != null && laneCount == 0) {
+                throw new IllegalStateException("A priority classifier requires priority lanes");
+            }
+            if(laneCount != 0
+                    && (limit != -1 || coalescingKeySelector != null || persistentFile != null || spillCodec != null)) {
+                throw new IllegalStateException(
+                        "Priority lanes cannot be combined with limit(), coalesceBy(), persistent() or spillToDisk()");
+            }
+            CommandQueue<T> commandQueue = multiProducer
+                    ? new ConcurrentCommandQueue<T>(consumerExecutor)
+                    : new CommandQueue<T>();
+            commandQueue.threadConfinement = threadConfinement;
+            commandQueue.verifiesThread = threadConfinement != ThreadConfinement.DEBUG_ONLY || DEBUG_THREAD_CONFINEMENT;
             commandQueue.distinctOnly = distinctOnly;
-            commandQueue.limit = limit;
+            commandQueue.maxBatchSize = maxBatchSize;
+            commandQueue.drainExecutor = drainExecutor;
+            commandQueue.maxEventsPerDrain = maxEventsPerDrain;
+            commandQueue.maxDrainNanos = maxDrainNanos;
+            commandQueue.clock = clock;
+            if(coalescingKeySelector != null) {
+                commandQueue.coalescingKeySelector = coalescingKeySelector;
+                commandQueue.coalescingIndex = new HashMap<Object, Long>();
+            }
+            commandQueue.overflowPolicy = overflowPolicy;
+            commandQueue.overflowListener = overflowListener;
+            if(limit != -1) {
+                commandQueue.queuedEvents = new RingBuffer<T>(Math.max(limit, 0));
+            }
+            if(laneCount != 0) {
+                commandQueue.priorityLanes = new PriorityLanes<T>(laneCount, laneWeights);
+                commandQueue.priorityClassifier = priorityClassifier;
+            }
+            if(scheduler != null) {
+                commandQueue.scheduler = scheduler;
+                commandQueue.timerWheel = new TimerWheel<T>(TIMER_TICK_NANOS, clock.nanoTime());
+                commandQueue.dueTimers = new ArrayList<TimerWheel.Timer<T>>();
+            }
+            if(rateLimitKeySelector != null) {
+                commandQueue.rateLimitKeySelector = rateLimitKeySelector;
+                commandQueue.rateLimitWindowNanos = rateLimitWindowNanos;
+                commandQueue.isDebounce = isDebounce;
+                commandQueue.rateLimitedKeys = new HashMap<Object, TimerWheel.Timer<T>>();
+            }
+            if(deliveryExecutor != null) {
+                commandQueue.asyncDelivery = new AsyncDelivery<T>(deliveryExecutor,
+                                                                  handoffCapacity,
+                                                                  maxBatchSize,
+                                                                  handoffCapacity != Integer.MAX_VALUE ? drainExecutor : null,
+                                                                  handoffCapacity != Integer.MAX_VALUE
+                                                                          ? commandQueue.createResumeDeliveryTask()
+                                                                          : null);
+            }
+            if(recordMetrics) {
+                commandQueue.metrics = new Metrics();
+            }
+            commandQueue.timeToLive = timeToLive;
+            if(recycler != null) {
+                commandQueue.commandPool = new CommandPool<T>(recycler, maxPoolSize);
+            }
+            if(recordMetrics || timeToLive != null) {
+                commandQueue.queuedEvents.enableStamps();
+                if(commandQueue.priorityLanes != null) {
+                    commandQueue.priorityLanes.enableStamps();
+                }
+            }
+            if(spillCodec != null) {
+                commandQueue.spillBuffer = new SpillBuffer<T>(spillDirectory, spillCodec);
+                commandQueue.spillThreshold = spillThreshold;
+            }
+            if(persistentFile != null) {
+                try {
+                    commandQueue.persistentLog = PersistentLog.open(persistentFile, persistentCodec, syncEvery);
+                } catch(IOException e) {
+                    throw new IllegalStateException("Could not open the persistent command queue [" + persistentFile + "]",
+                                                    e);
+                }
+                commandQueue.restorePersistedEvents();
+            }
             return commandQueue;
         }
     }
 
     /**
-     * The receiver receives commands when it is set.
-     *
-     * @param <T> the type of the event
+     * The receiver receives commands when it is set.
+     *
+     * @param <T> the type of the event
+     */
+    public interface Receiver<T> {
+        void receiveCommand(@Nonnull T command);
+    }
+
+    /**
+     * A receiver that receives the enqueued commands in batches when it is set, or when the queue is unpaused.
+     *
+     * Commands sent while the batch receiver can receive them are still passed to {@link #receiveCommand(Object)}.
+     *
+     * @param <T> the type of the event
+     */
+    public interface BatchReceiver<T>
+            extends Receiver<T> {
+        /**
+         * Receives a run of enqueued commands, in order. The list is only valid during this call, and it is
+         * reused afterwards, so it must be copied if it is to be retained.
+         *
+         * Changes made to the queue inside this call (pausing, detaching, or setting a different receiver) take effect
+         * after the whole batch.
+         *
+         * @param commands the commands
+         */
+        void receiveCommands(@Nonnull List<T> commands);
+    }
+
+    /**
+     * A receiver that only accepts commands of some classes. The commands it does not accept stay enqueued, and are
+     * emitted in order to the next receiver that accepts them.
+     *
+     * Declined commands are indexed by class, so setting a receiver only visits the declined commands that it accepts.
+     * They count toward the {@link Builder#limit(int, OverflowPolicy)} of the queue, and the oldest declined command is
+     * the oldest enqueued command for {@link OverflowPolicy#DROP_OLDEST}.
+     *
+     * @param <T> the type of the event
+     */
+    public interface SelectiveReceiver<T>
+            extends Receiver<T> {
+        /**
+         * Returns if the receiver accepts the commands of the given class. The result must not change while the
+         * receiver is set.
+         *
+         * @param commandClass the class of the command
+         * @return whether the commands of the class are accepted
+         */
+        boolean accepts(@Nonnull Class<?> commandClass);
+    }
+
+    /**
+     * The source of time for the command queue.
+     */
+    public interface Clock {
+        /**
+         * The clock based on {@link System#nanoTime()}.
+         */
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+
+        /**
+         * Returns the current value of a monotonic time source, in nanoseconds.
+         *
+         * @return the current time in nanoseconds
+         */
+        long nanoTime();
+    }
+
+    /**
+     * Runs tasks on the thread where the command queue was created after a delay, for example by posting them to that
+     * thread's Handler with {@code postDelayed()}.
+     */
+    public interface Scheduler {
+        /**
+         * Runs the task on the thread where the command queue was created, no earlier than after the given delay.
+         *
+         * @param task       the task
+         * @param delayNanos the delay in nanoseconds
+         */
+        void schedule(@Nonnull Runnable task, long delayNanos);
+    }
+
+    /**
+     * Determines how long an enqueued event is kept, see {@link Builder#timeToLive(TimeToLive)}.
+     *
+     * @param <T> the type of the event
+     */
+    public interface TimeToLive<T> {
+        /**
+         * Returns the time to live of the event.
+         *
+         * @param event the event
+         * @return the time to live in nanoseconds, or {@link Long#MAX_VALUE} if the event never expires
+         */
+        long getTimeToLiveNanos(@Nonnull T event);
+    }
+
+    /**
+     * Creates and resets the commands of a pooled command queue, see {@link Builder#pooled(Recycler, int)}.
+     *
+     * @param <T> the type of the event
+     */
+    public interface Recycler<T> {
+        /**
+         * Creates a new command, when there is no recycled command to reuse.
+         *
+         * @return the command
+         */
+        @Nonnull
+        T create();
+
+        /**
+         * Resets the state of the command before it is reused.
+         *
+         * @param command the command
+         */
+        void recycle(@Nonnull T command);
+    }
+
+    /**
+     * Selects the key of an event.
+     *
+     * @param <T> the type of the event
+     */
+    public interface KeySelector<T> {
+        /**
+         * Returns the key of the event. Keys are compared using {@link Object#equals(Object)}.
+         *
+         * @param event the event
+         * @return the key, or null if the event has no key
+         */
+        @Nullable
+        Object getKey(@Nonnull T event);
+    }
+
+    /**
+     * Chooses the lane of an event in a command queue with priority lanes, see {@link Builder#priorityLanes(int)}.
+     *
+     * @param <T> the type of the event
+     */
+    public interface PriorityClassifier<T> {
+        /**
+         * Returns the priority of the event, which is the index of its lane. Lane 0 has the highest priority.
+         *
+         * @param event the event
+         * @return the priority
+         */
+        int getPriority(@Nonnull T event);
+    }
+
+    /**
+     * Determines what happens when an event is enqueued into a queue that has reached its limit.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The new event is dropped. This is the default.
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest enqueued event is dropped to make room for the new event.
+         */
+        DROP_OLDEST,
+        /**
+         * The new event is rejected, and sending it throws an {@link IllegalStateException}.
+         */
+        REJECT
+    }
+
+    /**
+     * Determines how a command queue verifies that it is accessed on the thread that owns it: the thread that created
+     * it, or the thread it was handed off to.
+     */
+    public enum ThreadConfinement {
+        /**
+         * Every call verifies that it is made on the owner thread, and throws an {@link IllegalStateException} if not.
+         * This is the default.
+         */
+        STRICT,
+        /**
+         * Calls are only verified if the {@link #DEBUG_THREAD_CONFINEMENT_PROPERTY} system property is set to true,
+         * otherwise the command queue trusts its caller, and the check costs nothing.
+         */
+        DEBUG_ONLY,
+        /**
+         * Like {@link #STRICT}, but the owner can transfer the ownership to another thread with
+         * {@link CommandQueue#handOffTo(Thread)}, for example to hand the command queue over between the threads of a
+         * pool, or to a virtual thread.
+         */
+        HANDOFF
+    }
+
+    /**
+     * The overflow listener is notified of events that were dropped because the queue reached its limit.
+     *
+     * @param <T> the type of the event
+     */
+    public interface OverflowListener<T> {
+        void onEventDropped(@Nonnull T event);
+    }
+
+    /**
+     * The metrics of a command queue, see {@link Builder#recordMetrics()}.
+     *
+     * Counts are cumulative since the command queue was created. Times are in nanoseconds.
+     */
+    public static final class Metrics {
+        private int queueDepth;
+        private int highWaterMark;
+        private long oldestQueuedNanos;
+        private long enqueuedCount;
+        private long deliveredCount;
+        private long droppedCount;
+        private long deduplicatedCount;
+        private long coalescedCount;
+        private long expiredCount;
+        private long dequeuedCount;
+        private long totalQueuedNanos;
+        private long maxQueuedNanos;
+
+        Metrics() {
+        }
+
+        Metrics(Metrics metrics) {
+            this.queueDepth = metrics.queueDepth;
+            this.highWaterMark = metrics.highWaterMark;
+            this.oldestQueuedNanos = metrics.oldestQueuedNanos;
+            this.enqueuedCount = metrics.enqueuedCount;
+            this.deliveredCount = metrics.deliveredCount;
+            this.droppedCount = metrics.droppedCount;
+            this.deduplicatedCount = metrics.deduplicatedCount;
+            this.coalescedCount = metrics.coalescedCount;
+            this.expiredCount = metrics.expiredCount;
+            this.dequeuedCount = metrics.dequeuedCount;
+            this.totalQueuedNanos = metrics.totalQueuedNanos;
+            this.maxQueuedNanos = metrics.maxQueuedNanos;
+        }
+
+        /**
+         * Returns the number of events in the queue.
+         *
+         * @return the queue depth
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Returns the largest number of events that were in the queue at the same time.
+         *
+         * @return the high-water mark
+         */
+        public int getHighWaterMark() {
+            return highWaterMark;
+        }
+
+        /**
+         * Returns how long the oldest event in the queue has been waiting, or 0 if the queue is empty.
+         *
+         * A value that keeps growing means that the receiver is stalled, or the queue is paused.
+         *
+         * @return the age of the oldest queued event
+         */
+        public long getOldestQueuedNanos() {
+            return oldestQueuedNanos;
+        }
+
+        /**
+         * Returns the number of events that were enqueued.
+         *
+         * @return the enqueued count
+         */
+        public long getEnqueuedCount() {
+            return enqueuedCount;
+        }
+
+        /**
+         * Returns the number of events that were passed to a receiver, either directly or from the queue.
+         *
+         * @return the delivered count
+         */
+        public long getDeliveredCount() {
+            return deliveredCount;
+        }
+
+        /**
+         * Returns the number of events that were dropped or rejected because the queue reached its limit.
+         *
+         * @return the dropped count
+         */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        /**
+         * Returns the number of events that were not emitted because of {@link Builder#distinctOnly()}.
+         *
+         * @return the deduplicated count
+         */
+        public long getDeduplicatedCount() {
+            return deduplicatedCount;
+        }
+
+        /**
+         * Returns the number of enqueued events that were replaced because of {@link Builder#coalesceBy(KeySelector)}.
+         *
+         * @return the coalesced count
+         */
+        public long getCoalescedCount() {
+            return coalescedCount;
+        }
+
+        /**
+         * Returns the number of enqueued events that were discarded because of {@link Builder#timeToLive(TimeToLive)}.
+         *
+         * @return the expired count
+         */
+        public long getExpiredCount() {
+            return expiredCount;
+        }
+
+        /**
+         * Returns the average time that an event spent in the queue before it was taken out to be emitted.
+         *
+         * @return the average queued time
+         */
+        public long getAverageQueuedNanos() {
+            return dequeuedCount == 0 ? 0 : totalQueuedNanos / dequeuedCount;
+        }
+
+        /**
+         * Returns the longest time that an event spent in the queue before it was taken out to be emitted.
+         *
+         * @return the maximum queued time
+         */
+        public long getMaxQueuedNanos() {
+            return maxQueuedNanos;
+        }
+
+        void onEnqueued(int queueDepth) {
+            enqueuedCount++;
+            if(queueDepth > highWaterMark) {
+                highWaterMark = queueDepth;
+            }
+        }
+
+        void onDequeued(long queuedNanos) {
+            dequeuedCount++;
+            totalQueuedNanos += queuedNanos;
+            if(queuedNanos > maxQueuedNanos) {
+                maxQueuedNanos = queuedNanos;
+            }
+        }
+
+        void onDelivered(int count) {
+            deliveredCount += count;
+        }
+
+        void onDropped() {
+            droppedCount++;
+        }
+
+        void onDeduplicated() {
+            deduplicatedCount++;
+        }
+
+        void onExpired() {
+            expiredCount++;
+        }
+
+        void onCoalesced() {
+            coalescedCount++;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{" +
+                    "queueDepth=" + queueDepth +
+                    ", highWaterMark=" + highWaterMark +
+                    ", oldestQueuedNanos=" + oldestQueuedNanos +
+                    ", enqueuedCount=" + enqueuedCount +
+                    ", deliveredCount=" + deliveredCount +
+                    ", droppedCount=" + droppedCount +
+                    ", deduplicatedCount=" + deduplicatedCount +
+                    ", coalescedCount=" + coalescedCount +
+                    ", expiredCount=" + expiredCount +
+                    ", averageQueuedNanos=" + getAverageQueuedNanos() +
+                    ", maxQueuedNanos=" + maxQueuedNanos +
+                    '}';
+        }
+    }
+
+    /**
+     * The codec encodes and decodes the events of a persistent command queue, see {@link Builder#persistent(File, Codec)}.
+     *
+     * @param <T> the type of the event
+     */
+    public interface Codec<T> {
+        @Nonnull
+        byte[] encode(@Nonnull T event);
+
+        @Nonnull
+        T decode(@Nonnull byte[] bytes);
+    }
+
+    private Receiver<T> receiver;
+
+    /**
+     * Returns a snapshot of the metrics of the command queue. The snapshot can be passed to other threads.
+     *
+     * @return the metrics
+     * @throws IllegalStateException if the command queue does not record metrics, see {@link Builder#recordMetrics()}
+     */
+    @Nonnull
+    public Metrics getMetrics() {
+        verifyCurrentThread();
+        if(metrics == null) {
+            throw new IllegalStateException(
+                    "Metrics are only recorded if the command queue is built with recordMetrics()");
+        }
+        metrics.queueDepth = queuedEventCount();
+        if(priorityLanes != null) {
+            metrics.oldestQueuedNanos = priorityLanes.isEmpty() ? 0L : clock.nanoTime() - priorityLanes.oldestStamp();
+        } else {
+            metrics.oldestQueuedNanos = queuedEvents.isEmpty()
+                    ? 0L
+                    : clock.nanoTime() - queuedEvents.getStamp(queuedEvents.headSequence());
+        }
+        return new Metrics(metrics);
+    }
+
+    /**
+     * Returns a command to be filled in and sent, which is a recycled command if there is one, see
+     * {@link Builder#pooled(Recycler, int)}.
+     *
+     * @return the command
+     * @throws IllegalStateException if the command queue is not pooled
+     */
+    @Nonnull
+    public T obtainCommand() {
+        verifyCurrentThread();
+        if(commandPool == null) {
+            throw new IllegalStateException("The command queue is not pooled, see Builder.pooled()");
+        }
+        return commandPool.obtain();
+    }
+
+    /**
+     * Returns the number of enqueued events that were discarded because they expired, see
+     * {@link Builder#timeToLive(TimeToLive)}.
+     *
+     * @return the expired event count
+     */
+    public long getExpiredEventCount() {
+        verifyCurrentThread();
+        return expiredEventCount;
+    }
+
+    /**
+     * Releases the files of the command queue: the {@link Builder#persistent(File, Codec)} log is closed, and its
+     * events stay in the file, to be restored by the next command queue that uses it. The events spilled to disk by
+     * {@link Builder#spillToDisk(int, Codec)} are discarded, and their files are deleted. The command queue must not be
+     * used after it is closed.
+     */
+    public void close() {
+        verifyCurrentThread();
+        if(persistentLog != null) {
+            persistentLog.close();
+        }
+        if(spillBuffer != null) {
+            spillBuffer.close();
+        }
+    }
+
+    /**
+     * Returns if the command queue has a receiver.
+     *
+     * @return whether there is a receiver
+     */
+    public boolean hasReceiver() {
+        verifyCurrentThread();
+        return receiver != null;
+    }
+
+    private boolean isEmittingEvent = false;
+
+    /**
+     * Returns if the events handed off to the {@link Builder#deliverOn(Executor, int)} delivery executor have reached
+     * the handoff capacity. While this is true, new events are enqueued.
+     *
+     * @return whether delivery is backpressured
+     */
+    public boolean isDeliveryBackpressured() {
+        verifyCurrentThread();
+        return asyncDelivery != null && asyncDelivery.isFull();
+    }
+
+    /**
+     * Returns if events are delivered on the {@link Builder#deliverOn(Executor)} delivery executor.
+     *
+     * @return whether delivery is asynchronous
+     */
+    boolean isDeliveredAsync() {
+        return asyncDelivery != null;
+    }
+
+    private boolean canEmitEvents() {
+        return receiver != null && !isEmittingEvent && !paused
+                && (receiver != demandReceiver || (demand > 0 && !demandReceiver.isCancelled()))
+                && (asyncDelivery == null || asyncDelivery.hasCapacity());
+    }
+
+    @Nullable
+    Receiver<T> getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * A receiver that only receives the events it requested, see {@link #setDemandReceiver(DemandReceiver)}.
+     *
+     * @param <T> the type of the event
+     */
+    interface DemandReceiver<T>
+            extends Receiver<T> {
+        /**
+         * Returns if the receiver no longer requests events. May be called on the owner thread after the receiver was
+         * cancelled on another thread, but before it is detached.
+         *
+         * @return whether the receiver is cancelled
+         */
+        boolean isCancelled();
+    }
+
+    private DemandReceiver<T> demandReceiver; // the receiver that only receives the events it requested, or null
+    private long demand;
+
+    /**
+     * Makes the receiver only receive as many events as it requested with {@link #addDemand(long)}, while it is the
+     * receiver. The other events stay enqueued.
+     *
+     * @param receiver the receiver, or null to remove the demand limit
+     */
+    void setDemandReceiver(@Nullable DemandReceiver<T> receiver) {
+        this.demandReceiver = receiver;
+        this.demand = 0L;
+    }
+
+    /**
+     * Allows the demand receiver to receive the given number of additional events, and emits them if it is the
+     * receiver. The demand is unbounded once it reaches {@link Long#MAX_VALUE}.
+     *
+     * @param count the number of events, must be positive
+     */
+    void addDemand(long count) {
+        demand = demand + count < 0 ? Long.MAX_VALUE : demand + count;
+        final Receiver<T> currentReceiver = receiver;
+        if(currentReceiver != null && currentReceiver == demandReceiver) {
+            drainEvents(currentReceiver);
+        }
+    }
+
+    @Nonnull
+    private Runnable createResumeDeliveryTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                verifyCurrentThread();
+                final Receiver<T> currentReceiver = receiver;
+                if(currentReceiver != null) {
+                    drainEvents(currentReceiver);
+                }
+            }
+        };
+    }
+
+    private T previouslyEmittedEvent;
+
+    private ArrayList<T> batch;
+    private List<T> batchView;
+
+    private int drainedEventCount;
+    private long drainStartNanos;
+    private boolean isDrainContinuationScheduled = false;
+    private Runnable drainContinuation;
+
+    private void drainEvents(@Nonnull final Receiver<T> receiver) {
+        if(isEmittingEvent) {
+            return; // called by a receiver: the drain loop on the stack picks up the change once the receiver returns
+        }
+        drainedEventCount = 0;
+        if(maxDrainNanos != Long.MAX_VALUE) {
+            drainStartNanos = clock.nanoTime();
+        }
+        emitEvents(receiver);
+    }
+
+    private boolean isDrainBudgetExhausted() {
+        if(drainExecutor == null || drainedEventCount == 0) {
+            return false; // always make progress
+        }
+        return drainedEventCount >= maxEventsPerDrain
+                || (maxDrainNanos != Long.MAX_VALUE && clock.nanoTime() - drainStartNanos >= maxDrainNanos);
+    }
+
+    private void scheduleDrainContinuation() {
+        if(isDrainContinuationScheduled) {
+            return;
+        }
+        if(drainContinuation == null) {
+            drainContinuation = new Runnable() {
+                @Override
+                public void run() {
+                    verifyCurrentThread();
+                    isDrainContinuationScheduled = false;
+                    final Receiver<T> currentReceiver = receiver;
+                    if(currentReceiver != null) {
+                        drainEvents(currentReceiver);
+                    }
+                }
+            };
+        }
+        isDrainContinuationScheduled = true;
+        try {
+            drainExecutor.execute(drainContinuation);
+        } catch(RuntimeException e) {
+            isDrainContinuationScheduled = false; // the next drain schedules the continuation again
+            throw e;
+        }
+    }
+
+    /**
+     * Emits the enqueued events to the receiver, and then to each receiver that replaces it while emitting.
+     *
+     * Calls made by a receiver while it receives a command never emit events themselves: sent events are enqueued, and
+     * a new receiver is picked up by this loop once the receiver returns. So the stack depth stays the same no matter
+     * how many times the receiver is swapped.
+     */
+    private void emitEvents(@Nonnull final Receiver<T> receiver) {
+        Receiver<T> currentReceiver = receiver;
+        while(true) {
+            if(parkedCount > 0 && emitParkedEvents(currentReceiver)) {
+                return; // the drain budget is exhausted
+            }
+            if(emitQueuedEvents(currentReceiver)) {
+                return; // the drain budget is exhausted
+            }
+            final Receiver<T> nextReceiver = this.receiver;
+            if(nextReceiver == null || nextReceiver == currentReceiver) {
+                return;
+            }
+            currentReceiver = nextReceiver;
+        }
+    }
+
+    /**
+     * Emits the enqueued events to the receiver, while it is the current receiver.
+     *
+     * @return whether the drain budget was exhausted
+     */
+    private boolean emitQueuedEvents(@Nonnull final Receiver<T> receiver) {
+        if(receiver instanceof BatchReceiver && asyncDelivery == null) { // async delivery batches on its own
+            while(canEmitEvents() && hasQueuedEvents() && this.receiver == receiver) {
+                if(isDrainBudgetExhausted()) {
+                    scheduleDrainContinuation();
+                    return true;
+                }
+                sendCommandsToReceiver((BatchReceiver<T>) receiver,
+                                       Math.min(maxBatchSize, maxEventsPerDrain - drainedEventCount));
+            }
+        } else {
+            while(canEmitEvents() && hasQueuedEvents() && this.receiver == receiver) {
+                if(isDrainBudgetExhausted()) {
+                    scheduleDrainContinuation();
+                    return true;
+                }
+                long sequence = queuedEvents.headSequence();
+                T event = dequeueEvent();
+                drainedEventCount++;
+                if(isDequeuedEventExpired(event)) {
+                    onEventExpired(event, sequence);
+                    continue;
+                }
+                if(!acceptsEvent(receiver, event)) {
+                    parkEvent(event, sequence);
+                    continue;
+                }
+                try {
+                    sendCommandToReceiver(receiver, event);
+                } finally {
+                    if(persistentLog != null) {
+                        persistentLog.acknowledge(sequence, sequence + 1); // even if the receiver throws
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Emits an event that is sent while nothing is enqueued, then emits what the receiver enqueued meanwhile.
+     */
+    private void emitSentEvent(@Nonnull T event) {
+        sendCommandToReceiver(receiver, event);
+        final Receiver<T> currentReceiver = receiver;
+        if(currentReceiver != null && (hasQueuedEvents() || parkedCount > 0)) {
+            drainEvents(currentReceiver);
+        }
+    }
+
+    /**
+     * Emits the parked events that the receiver accepts, in order.
+     *
+     * @return whether the drain budget was exhausted
+     */
+    private boolean emitParkedEvents(@Nonnull final Receiver<T> receiver) {
+        if(priorityLanes != null) {
+            if(canEmitEvents() && this.receiver == receiver) {
+                requeueParkedEvents(receiver); // emitted by priority along with the enqueued events
+            }
+            return false;
+        }
+        while(canEmitEvents() && parkedCount > 0 && this.receiver == receiver) {
+            Class<?> oldestClass = findOldestParkedClass(receiver);
+            if(oldestClass == null) {
+                return false; // the receiver accepts none of them
+            }
+            if(isDrainBudgetExhausted()) {
+                scheduleDrainContinuation();
+                return true;
+            }
+            ParkedEvent<T> parkedEvent = pollParkedEvent(oldestClass);
+            drainedEventCount++;
+            if(timeToLive != null && isExpired(parkedEvent.event, parkedEvent.stamp, clock.nanoTime())) {
+                onEventExpired(parkedEvent.event, parkedEvent.sequence);
+                continue;
+            }
+            try {
+                sendCommandToReceiver(receiver, parkedEvent.event);
+            } finally {
+                if(persistentLog != null) {
+                    persistentLog.acknowledge(parkedEvent.sequence, parkedEvent.sequence + 1);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the parked events that the receiver accepts back to the head of their lanes, in order.
      */
-    public interface Receiver<T> {
-        void receiveCommand(@Nonnull T command);
+    private void requeueParkedEvents(@Nonnull Receiver<T> receiver) {
+        ArrayList<ParkedEvent<T>> acceptedEvents = null;
+        for(Iterator<Map.Entry<Class<?>, ArrayDeque<ParkedEvent<T>>>> iterator = parkedEvents.entrySet().iterator();
+            iterator.hasNext(); ) {
+            Map.Entry<Class<?>, ArrayDeque<ParkedEvent<T>>> entry = iterator.next();
+            if(acceptsClass(receiver, entry.getKey())) {
+                if(acceptedEvents == null) {
+                    acceptedEvents = new ArrayList<ParkedEvent<T>>();
+                }
+                acceptedEvents.addAll(entry.getValue());
+                iterator.remove();
+            }
+        }
+        if(acceptedEvents == null) {
+            return;
+        }
+        parkedCount -= acceptedEvents.size();
+        Collections.sort(acceptedEvents, PARKED_ORDER);
+        for(int i = acceptedEvents.size() - 1; i >= 0; i--) { // the oldest event ends up at the head
+            ParkedEvent<T> parkedEvent = acceptedEvents.get(i);
+            priorityLanes.offerFirst(parkedEvent.event, parkedEvent.priority, parkedEvent.stamp);
+        }
     }
 
-    private Receiver<T> receiver;
-
     /**
-     * Returns if the command queue has a receiver.
+     * Returns the class of the oldest parked event among the classes that the receiver accepts.
      *
-     * @return whether there is a receiver
+     * @param receiver the receiver, or null to consider every class
+     * @return the class, or null if the receiver accepts none of them
      */
-    public boolean hasReceiver() {
-        verifyCurrentThread();
-        return receiver != null;
+    @Nullable
+    private Class<?> findOldestParkedClass(@Nullable Receiver<T> receiver) {
+        Class<?> oldestClass = null;
+        ParkedEvent<T> oldestEvent = null;
+        for(Map.Entry<Class<?>, ArrayDeque<ParkedEvent<T>>> entry : parkedEvents.entrySet()) {
+            ParkedEvent<T> event = entry.getValue().peek();
+            if((oldestEvent == null || event.order < oldestEvent.order)
+                    && (receiver == null || acceptsClass(receiver, entry.getKey()))) {
+                oldestClass = entry.getKey();
+                oldestEvent = event;
+            }
+        }
+        return oldestClass;
     }
 
-    private boolean isEmittingEvent = false;
-
-    private boolean canEmitEvents() {
-        return receiver != null && !isEmittingEvent && !paused;
+    @Nonnull
+    private ParkedEvent<T> pollParkedEvent(@Nonnull Class<?> parkedClass) {
+        ArrayDeque<ParkedEvent<T>> events = parkedEvents.get(parkedClass);
+        ParkedEvent<T> parkedEvent = events.poll();
+        if(events.isEmpty()) {
+            parkedEvents.remove(parkedClass);
+        }
+        parkedCount--;
+        return parkedEvent;
     }
 
-    private T previouslyEmittedEvent;
-
-    private void emitEvents(@Nonnull final Receiver<T> receiver) {
-        while(canEmitEvents() && !queuedEvents.isEmpty() && this.receiver == receiver) {
-            T event = queuedEvents.poll();
-            isEmittingEvent = true;
-            sendCommandToReceiver(receiver, event);
-            isEmittingEvent = false;
+    private boolean hasDeliverableParkedEvents() {
+        if(parkedCount == 0) {
+            return false;
+        }
+        if(!(receiver instanceof SelectiveReceiver)) {
+            return true;
+        }
+        for(Class<?> parkedClass : parkedEvents.keySet()) {
+            if(acceptsClass(receiver, parkedClass)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        if(this.receiver != receiver) {
-            emitEvents(this.receiver);
+    private void parkEvent(@Nonnull T event, long sequence) {
+        if(parkedEvents == null) {
+            parkedEvents = new HashMap<Class<?>, ArrayDeque<ParkedEvent<T>>>();
+        }
+        Class<?> eventClass = event.getClass();
+        ArrayDeque<ParkedEvent<T>> events = parkedEvents.get(eventClass);
+        if(events == null) {
+            events = new ArrayDeque<ParkedEvent<T>>();
+            parkedEvents.put(eventClass, events);
         }
+        events.add(new ParkedEvent<T>(event, nextParkedOrder++, sequence, lastDequeuedStamp, lastDequeuedPriority));
+        parkedCount++;
+    }
+
+    private static <T> boolean acceptsEvent(@Nonnull Receiver<T> receiver, @Nonnull T event) {
+        return acceptsClass(receiver, event.getClass());
+    }
+
+    private static <T> boolean acceptsClass(@Nonnull Receiver<T> receiver, @Nonnull Class<?> eventClass) {
+        return !(receiver instanceof SelectiveReceiver) || ((SelectiveReceiver<T>) receiver).accepts(eventClass);
     }
 
     private void sendCommandToReceiver(@Nonnull Receiver<T> receiver, @Nonnull T event) {
         T previousEvent = previouslyEmittedEvent;
         if(previousEvent != null && event.equals(previousEvent) && distinctOnly) {
+            if(metrics != null) {
+                metrics.onDeduplicated();
+            }
             return; // don't send duplicate commands if distinct only
         }
         this.previouslyEmittedEvent = event;
-        receiver.receiveCommand(event);
+        if(metrics != null) {
+            metrics.onDelivered(1);
+        }
+        if(receiver == demandReceiver && demand != Long.MAX_VALUE) {
+            demand--;
+        }
+        if(asyncDelivery != null) {
+            asyncDelivery.handOff(receiver, event);
+        } else {
+            isEmittingEvent = true;
+            try {
+                receiver.receiveCommand(event);
+            } finally {
+                isEmittingEvent = false;
+            }
+            recycle(event);
+        }
+    }
+
+    private void sendCommandsToReceiver(@Nonnull BatchReceiver<T> receiver, int maxCount) {
+        if(batch == null) {
+            batch = new ArrayList<T>();
+            batchView = Collections.unmodifiableList(batch);
+        }
+        batch.clear();
+        long firstSequence = queuedEvents.headSequence();
+        long endSequence = -1L;
+        while(batch.size() < maxCount && hasQueuedEvents()) {
+            long sequence = queuedEvents.headSequence();
+            T event = dequeueEvent();
+            drainedEventCount++;
+            if(isDequeuedEventExpired(event)) {
+                discardExpiredEvent(event); // acknowledged with the batch
+                continue;
+            }
+            if(!acceptsEvent(receiver, event)) {
+                parkEvent(event, sequence);
+                if(persistentLog != null) {
+                    endSequence = sequence; // the parked event must not be acknowledged with the batch
+                    break;
+                }
+                continue;
+            }
+            T previousEvent = previouslyEmittedEvent;
+            if(previousEvent != null && event.equals(previousEvent) && distinctOnly) {
+                if(metrics != null) {
+                    metrics.onDeduplicated();
+                }
+                continue; // don't send duplicate commands if distinct only
+            }
+            this.previouslyEmittedEvent = event;
+            batch.add(event);
+        }
+        if(endSequence == -1L) {
+            endSequence = queuedEvents.headSequence();
+        }
+        if(!batch.isEmpty()) {
+            if(metrics != null) {
+                metrics.onDelivered(batch.size());
+            }
+            isEmittingEvent = true;
+            try {
+                receiver.receiveCommands(batchView);
+            } finally {
+                isEmittingEvent = false;
+                if(persistentLog != null) {
+                    persistentLog.acknowledge(firstSequence, endSequence); // even if the receiver throws
+                }
+            }
+            if(commandPool != null) {
+                for(int i = 0, size = batch.size(); i < size; i++) {
+                    commandPool.recycle(batch.get(i));
+                }
+            }
+        } else if(persistentLog != null) {
+            persistentLog.acknowledge(firstSequence, endSequence);
+        }
+        batch.clear();
     }
 
     /**
@@ -119,10 +1758,13 @@ public class CommandQueue<T> {
     public void setReceiver(@Nullable final Receiver<T> receiver) {
         verifyCurrentThread();
 
+        if(asyncDelivery != null && receiver != this.receiver) {
+            asyncDelivery.releaseReceiver();
+        }
         this.receiver = receiver;
 
         if(receiver != null) {
-            emitEvents(receiver);
+            drainEvents(receiver);
         }
     }
 
@@ -141,7 +1783,7 @@ public class CommandQueue<T> {
         if(wasPaused && !paused) {
             final Receiver<T> currentReceiver = receiver;
             if(currentReceiver != null) {
-                emitEvents(currentReceiver);
+                drainEvents(currentReceiver);
             }
         }
     }
@@ -152,13 +1794,19 @@ public class CommandQueue<T> {
     public void detachReceiver() {
         verifyCurrentThread();
 
+        if(asyncDelivery != null) {
+            asyncDelivery.releaseReceiver();
+        }
         this.receiver = null;
     }
 
     /**
      * Sends the event to the receiver. If there is no receiver, then the event is enqueued until a new receiver is set.
      *
+     * If the queue has reached its limit, the {@link OverflowPolicy} is applied.
+     *
      * @param event the event
+     * @throws IllegalStateException if the queue is full, and the overflow policy is {@link OverflowPolicy#REJECT}
      */
     public void sendEvent(@Nonnull final T event) {
         verifyCurrentThread();
@@ -167,19 +1815,597 @@ public class CommandQueue<T> {
         if(event == null) {
             throw new IllegalArgumentException("Null value is not allowed as an event");
         }
-        if(!canEmitEvents()) {
-            if(limit == -1 || queuedEvents.size() < limit) { // drop new events that don't fit the queue
-                queuedEvents.add(event);
+        if(rateLimitKeySelector != null && isRateLimited(event)) {
+            return;
+        }
+        dispatchEvent(event);
+    }
+
+    /**
+     * Sends the events in order, with the same outcome as calling {@link #sendEvent(Object)} for each of them.
+     *
+     * The events are verified once before any of them is sent. Unless the queue has features that handle events one by
+     * one (such as coalescing, rate limiting, priority lanes, time to live, metrics, or persistence), the events that
+     * are enqueued (while there is no receiver, the queue is paused, or behind enqueued events) are appended to the
+     * buffer in bulk, and a {@link BatchReceiver} receives the events as a batch. Events that a batch receiver sends
+     * while it receives the batch are received after the batch.
+     *
+     * @param events the events
+     * @throws IllegalStateException if the queue is full, and the overflow policy is {@link OverflowPolicy#REJECT}
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs") // sendEventArray() only reads the events
+    public final void sendEvents(@Nonnull final T... events) {
+        //noinspection ConstantConditions
+        if(events == null) {
+            throw new IllegalArgumentException("Events cannot be null");
+        }
+        sendEventArray(events);
+    }
+
+    /**
+     * Sends the events in order, see {@link #sendEvents(Object[])}.
+     *
+     * @param events the events
+     * @throws IllegalStateException if the queue is full, and the overflow policy is {@link OverflowPolicy#REJECT}
+     */
+    public final void sendEvents(@Nonnull final Iterable<? extends T> events) {
+        //noinspection ConstantConditions
+        if(events == null) {
+            throw new IllegalArgumentException("Events cannot be null");
+        }
+        if(events instanceof Collection) {
+            sendEventArray(((Collection<? extends T>) events).toArray());
+        } else {
+            ArrayList<T> eventList = new ArrayList<T>();
+            for(T event : events) {
+                eventList.add(event);
+            }
+            sendEventArray(eventList.toArray());
+        }
+    }
+
+    /**
+     * Sends the events of the array, which is only read during this call.
+     *
+     * @param events the events
+     */
+    @SuppressWarnings("unchecked")
+    void sendEventArray(@Nonnull Object[] events) {
+        verifyCurrentThread();
+
+        verifyEvents(events);
+        if(!canEnqueueInBulk()) {
+            for(Object event : events) {
+                if(rateLimitKeySelector == null || !isRateLimited((T) event)) {
+                    dispatchEvent((T) event);
+                }
+            }
+            return;
+        }
+        int offset = 0;
+        while(offset < events.length) {
+            if(!canEmitEvents() || hasQueuedEvents() || hasDeliverableParkedEvents()) { // keep the order behind a backlog
+                offset += queuedEvents.offerAll(events, offset, Math.min(events.length - offset, remainingCapacity()));
+                for(; offset < events.length; offset++) {
+                    enqueueEvent((T) events[offset]); // applies the overflow policy
+                }
+                return;
+            }
+            if(!(receiver instanceof BatchReceiver) || asyncDelivery != null) {
+                offset = emitEach(events, offset);
+                continue;
+            }
+            // emit the events that fit in the buffer as a batch, without reaching the limit
+            int addedCount = queuedEvents.offerAll(events, offset, Math.min(events.length - offset, remainingCapacity()));
+            if(addedCount == 0) {
+                dispatchEvent((T) events[offset]); // the queue cannot hold any events
+                addedCount = 1;
+            }
+            offset += addedCount;
+            drainEvents(receiver);
+        }
+    }
+
+    /**
+     * Emits the events one by one, so that the events that the receiver sends meanwhile are emitted in between, until
+     * the events would have to be enqueued.
+     *
+     * @return the index of the first event that is not emitted
+     */
+    @SuppressWarnings("unchecked")
+    private int emitEach(@Nonnull Object[] events, int offset) {
+        while(offset < events.length && canEmitEvents() && !hasQueuedEvents() && !hasDeliverableParkedEvents()) {
+            T event = (T) events[offset++];
+            if(!acceptsEvent(receiver, event)) {
+                enqueueSentEvent(event);
+                drainEvents(receiver); // parks the event
+            } else {
+                emitSentEvent(event);
+            }
+        }
+        return offset;
+    }
+
+    static void verifyEvents(@Nonnull Object[] events) {
+        for(int i = 0; i < events.length; i++) {
+            if(events[i] == null) {
+                throw new IllegalArgumentException("Null value is not allowed as an event, at index [" + i + "]");
+            }
+        }
+    }
+
+    private boolean canEnqueueInBulk() {
+        return rateLimitKeySelector == null && coalescingIndex == null && spillBuffer == null && persistentLog == null
+                && priorityLanes == null && !isStamped();
+    }
+
+    private void dispatchEvent(@Nonnull final T event) {
+        if(!canEmitEvents() || hasQueuedEvents() || hasDeliverableParkedEvents()) { // keep the order behind a backlog
+            enqueueSentEvent(event);
+        } else if(!acceptsEvent(receiver, event)) {
+            enqueueSentEvent(event);
+            drainEvents(receiver); // parks the event
+        } else {
+            emitSentEvent(event);
+        }
+    }
+
+    /**
+     * Sends the event after the given delay. Delayed events that become due at the same time are sent in the order of
+     * their deadlines, and then of their calls. Requires a {@link Builder#scheduler(Scheduler)}.
+     *
+     * @param event    the event
+     * @param delay    the delay, the event is sent immediately if it is not positive
+     * @param timeUnit the time unit of the delay
+     * @throws IllegalStateException if the command queue has no scheduler
+     */
+    public void sendEventDelayed(@Nonnull final T event, long delay, @Nonnull TimeUnit timeUnit) {
+        verifyCurrentThread();
+
+        //noinspection ConstantConditions
+        if(event == null) {
+            throw new IllegalArgumentException("Null value is not allowed as an event");
+        }
+        if(timerWheel == null) {
+            throw new IllegalStateException("Delayed events are only supported if the command queue has a scheduler");
+        }
+        if(delay <= 0) {
+            dispatchEvent(event);
+            return;
+        }
+        timerWheel.schedule(event, null, clock.nanoTime() + timeUnit.toNanos(delay));
+        scheduleWakeup();
+    }
+
+    /**
+     * Returns the number of delayed events that are not due yet, including events held back by debouncing.
+     *
+     * @return the number of delayed events
+     */
+    public int getDelayedEventCount() {
+        verifyCurrentThread();
+        if(timerWheel == null) {
+            return 0;
+        }
+        if(rateLimitedKeys != null && !isDebounce) {
+            return timerWheel.size() - rateLimitedKeys.size(); // throttle windows are not events
+        }
+        return timerWheel.size();
+    }
+
+    private boolean isRateLimited(@Nonnull T event) {
+        Object key = rateLimitKeySelector.getKey(event);
+        if(key == null) {
+            return false;
+        }
+        TimerWheel.Timer<T> timer = rateLimitedKeys.get(key);
+        if(isDebounce) {
+            if(timer != null) {
+                // the new event replaces it, and restarts the window: if it is already due, onTimer() skips it
+                timerWheel.cancel(timer);
+                recycle(timer.event);
+            }
+            rateLimitedKeys.put(key, timerWheel.schedule(event, key, clock.nanoTime() + rateLimitWindowNanos));
+            scheduleWakeup();
+            return true;
+        } else {
+            if(timer != null && timer.isScheduled()) {
+                recycle(event);
+                return true; // the window of the key is still open
+            }
+            rateLimitedKeys.put(key, timerWheel.schedule(null, key, clock.nanoTime() + rateLimitWindowNanos));
+            scheduleWakeup();
+            return false;
+        }
+    }
+
+    private void scheduleWakeup() {
+        long wakeupNanos = timerWheel.nextWorkNanos();
+        if(wakeupNanos >= scheduledWakeupNanos) {
+            return; // an earlier wakeup is already scheduled, it schedules the next one
+        }
+        if(timerTask == null) {
+            timerTask = new Runnable() {
+                @Override
+                public void run() {
+                    verifyCurrentThread();
+                    scheduledWakeupNanos = Long.MAX_VALUE;
+                    onTimer();
+                }
+            };
+        }
+        scheduledWakeupNanos = wakeupNanos;
+        scheduler.schedule(timerTask, Math.max(0L, wakeupNanos - clock.nanoTime()));
+    }
+
+    private void onTimer() {
+        if(isProcessingTimers) {
+            return; // the scheduler ran the task synchronously, the outer call schedules the next wakeup
+        }
+        isProcessingTimers = true;
+        try {
+            timerWheel.advance(clock.nanoTime(), dueTimers);
+            for(int i = 0; i < dueTimers.size(); i++) {
+                TimerWheel.Timer<T> timer = dueTimers.get(i);
+                if(timer.key != null) {
+                    if(rateLimitedKeys.get(timer.key) != timer) {
+                        continue; // replaced by an event sent while an earlier due timer was dispatched
+                    }
+                    rateLimitedKeys.remove(timer.key);
+                }
+                if(timer.event != null) {
+                    dispatchEvent(timer.event);
+                }
+            }
+        } finally {
+            dueTimers.clear();
+            isProcessingTimers = false;
+        }
+        if(!timerWheel.isEmpty()) {
+            scheduleWakeup();
+        }
+    }
+
+    private void enqueueSentEvent(@Nonnull T event) {
+        if(priorityLanes != null) {
+            enqueuePrioritizedEvent(event, priorityClassifier != null
+                    ? priorityClassifier.getPriority(event)
+                    : priorityLanes.laneCount() - 1);
+        } else {
+            enqueueEvent(event);
+        }
+    }
+
+    /**
+     * Sends the event to the receiver with the given priority. If the event cannot be sent directly, it is enqueued into
+     * the lane of the priority, see {@link Builder#priorityLanes(int)}.
+     *
+     * @param event    the event
+     * @param priority the priority, which is the index of the lane, 0 being the highest priority
+     * @throws IllegalStateException if the command queue has no priority lanes
+     */
+    public void sendEvent(@Nonnull final T event, int priority) {
+        verifyCurrentThread();
+
+        //noinspection ConstantConditions
+        if(event == null) {
+            throw new IllegalArgumentException("Null value is not allowed as an event");
+        }
+        verifyPriority(priority);
+        if(!canEmitEvents() || hasQueuedEvents() || hasDeliverableParkedEvents()) {
+            enqueuePrioritizedEvent(event, priority);
+        } else if(!acceptsEvent(receiver, event)) {
+            enqueuePrioritizedEvent(event, priority);
+            drainEvents(receiver); // parks the event
+        } else {
+            emitSentEvent(event);
+        }
+    }
+
+    private boolean hasQueuedEvents() {
+        return priorityLanes != null ? !priorityLanes.isEmpty() : !queuedEvents.isEmpty();
+    }
+
+    /**
+     * Verifies that the command queue has a lane for the priority. The lanes do not change once the command queue is
+     * built, so this can be called on any thread.
+     *
+     * @param priority the priority
+     * @throws IllegalStateException    if the command queue has no priority lanes
+     * @throws IllegalArgumentException if the command queue has no lane for the priority
+     */
+    void verifyPriority(int priority) {
+        if(priorityLanes == null) {
+            throw new IllegalStateException("Priorities are only supported if the command queue has priority lanes");
+        }
+        if(priority < 0 || priority >= priorityLanes.laneCount()) {
+            throw new IllegalArgumentException(
+                    "Priority must be between 0 and [" + (priorityLanes.laneCount() - 1) + "], but was [" + priority + "]");
+        }
+    }
+
+    private void enqueuePrioritizedEvent(@Nonnull T event, int priority) {
+        verifyPriority(priority);
+        RingBuffer<T> lane = priorityLanes.lane(priority);
+        if(timeToLive != null && !lane.isEmpty() && lane.size() >= lane.length()) {
+            purgeExpiredEvents(); // before the lane grows
+        }
+        priorityLanes.offer(event, priority, isStamped() ? clock.nanoTime() : 0L);
+        if(metrics != null) {
+            metrics.onEnqueued(queuedEventCount());
+        }
+    }
+
+    private void enqueueEvent(@Nonnull T event) {
+        Object key = null;
+        if(coalescingIndex != null) {
+            key = coalescingKeySelector.getKey(event);
+            if(key != null) {
+                Long sequence = coalescingIndex.get(key);
+                if(sequence != null && queuedEvents.containsSequence(sequence)) {
+                    T replacedEvent = queuedEvents.get(sequence);
+                    queuedEvents.set(sequence, event); // replace the previous event for the key in place
+                    if(isStamped()) {
+                        queuedEvents.setStamp(sequence, clock.nanoTime()); // its age starts with the new event
+                    }
+                    if(persistentLog != null) {
+                        persistentLog.replace(sequence, event);
+                    }
+                    if(metrics != null) {
+                        metrics.onCoalesced();
+                    }
+                    recycle(replacedEvent);
+                    return;
+                }
+            }
+        }
+        if(spillBuffer != null && (!spillBuffer.isEmpty() || queuedEvents.size() + parkedCount >= spillThreshold)) {
+            spillBuffer.write(event, isStamped() ? clock.nanoTime() : 0L); // keep the order behind spilled events
+            recycle(event); // it is read back as a new object
+            if(metrics != null) {
+                metrics.onEnqueued(queuedEventCount());
+            }
+            return;
+        }
+        if(timeToLive != null && !queuedEvents.isEmpty() && queuedEvents.size() >= queuedEvents.length()) {
+            purgeExpiredEvents(); // before the buffer grows, or applies the overflow policy
+        }
+        if(isAtLimit()) {
+            if(overflowPolicy == OverflowPolicy.REJECT) {
+                if(metrics != null) {
+                    metrics.onDropped();
+                }
+                recycle(event);
+                throw new IllegalStateException(
+                        "The command queue is full, it can hold at most [" + queuedEvents.capacity() + "] events");
+            }
+            if(overflowPolicy == OverflowPolicy.DROP_OLDEST && parkedCount > 0) {
+                // parked events were dequeued before any of the enqueued events, so they are the oldest
+                ParkedEvent<T> parkedEvent = pollParkedEvent(findOldestParkedClass(null));
+                onEventDropped(parkedEvent.event);
+                if(persistentLog != null) {
+                    persistentLog.acknowledge(parkedEvent.sequence, parkedEvent.sequence + 1);
+                }
+            } else if(overflowPolicy == OverflowPolicy.DROP_OLDEST && !queuedEvents.isEmpty()) {
+                long sequence = queuedEvents.headSequence();
+                onEventDropped(dequeueEvent());
+                if(persistentLog != null) {
+                    persistentLog.acknowledge(sequence, sequence + 1);
+                }
+            } else {
+                onEventDropped(event);
+                return;
             }
+        }
+        long tailSequence = queuedEvents.tailSequence();
+        if(isStamped()) {
+            queuedEvents.offer(event, clock.nanoTime());
         } else {
-            sendCommandToReceiver(receiver, event);
+            queuedEvents.offer(event);
+        }
+        if(metrics != null) {
+            metrics.onEnqueued(queuedEventCount());
+        }
+        if(persistentLog != null) {
+            persistentLog.append(tailSequence, event);
+        }
+        if(key != null) {
+            coalescingIndex.put(key, tailSequence);
+        }
+    }
+
+    /**
+     * Returns if the queue holds as many events as its limit, counting the events parked for a selective receiver.
+     */
+    private boolean isAtLimit() {
+        return (long) queuedEvents.size() + parkedCount >= queuedEvents.capacity();
+    }
+
+    private int remainingCapacity() {
+        return (int) Math.max(0L, (long) queuedEvents.capacity() - queuedEvents.size() - parkedCount);
+    }
+
+    private boolean isStamped() {
+        return metrics != null || timeToLive != null;
+    }
+
+    private boolean isExpired(@Nonnull T event, long stamp, long nowNanos) {
+        long timeToLiveNanos = timeToLive.getTimeToLiveNanos(event);
+        return timeToLiveNanos != Long.MAX_VALUE && nowNanos - stamp >= timeToLiveNanos;
+    }
+
+    private boolean isDequeuedEventExpired(@Nonnull T event) {
+        return timeToLive != null && isExpired(event, lastDequeuedStamp, clock.nanoTime());
+    }
+
+    /**
+     * Discards the expired events at the head of the buffer, or of every priority lane. With a time to live per event,
+     * this stops at the first event that has not expired, the rest are discarded when they would be emitted.
+     */
+    private void purgeExpiredEvents() {
+        long nowNanos = clock.nanoTime();
+        if(priorityLanes != null) {
+            for(int priority = 0; priority < priorityLanes.laneCount(); priority++) {
+                RingBuffer<T> lane = priorityLanes.lane(priority);
+                while(!lane.isEmpty()) {
+                    long stamp = lane.getStamp(lane.headSequence());
+                    if(!isExpired(lane.peek(), stamp, nowNanos)) {
+                        break;
+                    }
+                    if(metrics != null) {
+                        metrics.onDequeued(nowNanos - stamp);
+                    }
+                    discardExpiredEvent(priorityLanes.poll(priority));
+                }
+            }
+            return;
+        }
+        while(!queuedEvents.isEmpty()) {
+            long sequence = queuedEvents.headSequence();
+            if(!isExpired(queuedEvents.get(sequence), queuedEvents.getStamp(sequence), nowNanos)) {
+                return;
+            }
+            onEventExpired(dequeueEvent(), sequence);
+        }
+    }
+
+    private void onEventExpired(@Nonnull T event, long sequence) {
+        discardExpiredEvent(event);
+        if(persistentLog != null) {
+            persistentLog.acknowledge(sequence, sequence + 1);
+        }
+    }
+
+    private void discardExpiredEvent(@Nonnull T event) {
+        expiredEventCount++;
+        if(metrics != null) {
+            metrics.onExpired();
+        }
+        recycle(event);
+    }
+
+    private void recycle(@Nonnull T event) {
+        if(commandPool != null) {
+            commandPool.recycle(event);
+        }
+    }
+
+    private void refillFromSpillBuffer() {
+        // parked events take up memory too, but at least one event is read back so that the queue makes progress
+        while((queuedEvents.isEmpty() || queuedEvents.size() + parkedCount < spillThreshold) && !spillBuffer.isEmpty()) {
+            T event = spillBuffer.read();
+            queuedEvents.offer(event, spillBuffer.getLastReadStamp());
+        }
+    }
+
+    private int queuedEventCount() {
+        if(priorityLanes != null) {
+            return priorityLanes.size() + parkedCount;
+        }
+        if(spillBuffer == null) {
+            return queuedEvents.size() + parkedCount;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, queuedEvents.size() + spillBuffer.size() + parkedCount);
+    }
+
+    private void restorePersistedEvents() {
+        try {
+            List<T> events = new ArrayList<T>();
+            persistentLog.readLiveRecords(events);
+            for(int i = 0, size = events.size(); i < size; i++) {
+                persistentLog.beginRestore(i);
+                enqueueEvent(events.get(i)); // binds the existing record to the sequence number of the event
+                persistentLog.endRestore(); // acknowledges the record if the event was dropped
+            }
+            persistentLog.finishRestore();
+        } catch(RuntimeException e) {
+            persistentLog.close(); // the records that were not restored stay in the file
+            throw e;
+        }
+    }
+
+    private void onEventDropped(@Nonnull T event) {
+        if(metrics != null) {
+            metrics.onDropped();
+        }
+        if(overflowListener != null) {
+            overflowListener.onEventDropped(event);
+        }
+        recycle(event);
+    }
+
+    @Nonnull
+    private T dequeueEvent() {
+        if(priorityLanes != null) {
+            lastDequeuedPriority = priorityLanes.nextLane();
+            RingBuffer<T> lane = priorityLanes.lane(lastDequeuedPriority);
+            if(isStamped()) {
+                lastDequeuedStamp = lane.getStamp(lane.headSequence());
+                if(metrics != null) {
+                    metrics.onDequeued(clock.nanoTime() - lastDequeuedStamp);
+                }
+            }
+            return lane.poll();
+        }
+        long sequence = queuedEvents.headSequence();
+        if(isStamped()) {
+            lastDequeuedStamp = queuedEvents.getStamp(sequence);
+            if(metrics != null) {
+                metrics.onDequeued(clock.nanoTime() - lastDequeuedStamp);
+            }
         }
+        T event = queuedEvents.poll();
+        if(spillBuffer != null && queuedEvents.isEmpty() && !spillBuffer.isEmpty()) {
+            refillFromSpillBuffer(); // the events in memory are always older than the spilled ones
+        }
+        if(coalescingIndex != null) {
+            Object key = coalescingKeySelector.getKey(event);
+            if(key != null) {
+                Long indexedSequence = coalescingIndex.get(key);
+                if(indexedSequence != null && indexedSequence == sequence) {
+                    coalescingIndex.remove(key);
+                }
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Transfers the ownership of the command queue to the given thread: from now on, the command queue can only be
+     * accessed on that thread. Requires {@link ThreadConfinement#HANDOFF}, and must be called on the owner thread,
+     * outside of a receiver.
+     *
+     * The command queue is not thread-safe, so the handoff must happen-before the new owner accesses it, for example
+     * by submitting the task that accesses it to an executor after this call. The executors of the command queue must
+     * run their tasks on the current owner.
+     *
+     * @param thread the new owner thread
+     */
+    public void handOffTo(@Nonnull Thread thread) {
+        //noinspection ConstantConditions
+        if(thread == null) {
+            throw new IllegalArgumentException("Thread cannot be null");
+        }
+        if(threadConfinement != ThreadConfinement.HANDOFF) {
+            throw new IllegalStateException("Only a command queue with HANDOFF thread confinement can be handed off");
+        }
+        verifyCurrentThread();
+        if(isEmittingEvent) {
+            throw new IllegalStateException("A command queue cannot be handed off while a receiver receives commands");
+        }
+        ownerThread = thread;
+    }
+
+    boolean isOwnerThread() {
+        return ownerThread == Thread.currentThread();
     }
 
-    private void verifyCurrentThread() {
-        if(threadId != Thread.currentThread().getId()) {
+    void verifyCurrentThread() {
+        if(verifiesThread && ownerThread != Thread.currentThread()) {
             throw new IllegalStateException(
-                    "A command queue can only be accessed on the thread where it was created.");
+                    "A command queue can only be accessed on the thread where it was created, "
+                            + "or that it was handed off to.");
         }
     }
 }
\ No newline at end of file
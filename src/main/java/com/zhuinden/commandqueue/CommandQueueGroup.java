@@ -0,0 +1,366 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Many command queues in one, identified by key: each key behaves like a {@link CommandQueue}, with its own receiver,
+ * paused state and enqueued events.
+ *
+ * The enqueued events of every key share a single storage of two arrays, where the events of a key are linked in order,
+ * so a key costs a small record of its receiver and the positions of its first and last event. A key that has no
+ * receiver, is not paused, and has no enqueued events is not stored at all. Like the buffer of a command queue, the
+ * storage shrinks back once a large backlog has been emitted: the remaining events are then moved together.
+ *
+ * Keys that have a receiver and events to emit are put on a ready list, and emitting only visits the keys on it. The
+ * events that a receiver sends (to any key) while it receives a command are emitted once it returns, so the stack
+ * depth does not grow with the number of keys involved.
+ *
+ * The command queue group can only be accessed on the thread where it was created.
+ *
+ * @param <K> the type of the key
+ * @param <T> the type of the event
+ */
+public class CommandQueueGroup<K, T> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int RETAINED_CAPACITY = RingBuffer.MAX_PREALLOCATED_CAPACITY; // the storage never shrinks below
+
+    private static final int NONE = -1;
+
+    private static final class Slot<K, T> {
+        final K key;
+        CommandQueue.Receiver<T> receiver;
+        boolean paused;
+        boolean ready;
+        int head = NONE;
+        int tail = NONE;
+        int count;
+
+        Slot(K key) {
+            this.key = key;
+        }
+    }
+
+    private final Thread ownerThread = Thread.currentThread();
+
+    private final HashMap<K, Slot<K, T>> slots = new HashMap<K, Slot<K, T>>();
+
+    private final ArrayDeque<Slot<K, T>> readySlots = new ArrayDeque<Slot<K, T>>();
+
+    // the shared storage: the enqueued events, and the index of the next event of the same key, or of the next free cell
+    private Object[] events = new Object[INITIAL_CAPACITY];
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int freeHead = NONE;
+    private int usedCount; // cells in use, or on the free list
+    private int eventCount;
+
+    private boolean isEmittingEvents = false;
+
+    public CommandQueueGroup() {
+    }
+
+    /**
+     * Sends the event to the receiver of the key. If the key has no receiver, or is paused, the event is enqueued until
+     * the key has a receiver and is not paused.
+     *
+     * @param key   the key
+     * @param event the event
+     */
+    public void sendEvent(@Nonnull K key, @Nonnull T event) {
+        verifyCurrentThread();
+
+        //noinspection ConstantConditions
+        if(key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        //noinspection ConstantConditions
+        if(event == null) {
+            throw new IllegalArgumentException("Null value is not allowed as an event");
+        }
+        Slot<K, T> slot = slots.get(key);
+        if(slot == null) {
+            slot = new Slot<K, T>(key);
+            slots.put(key, slot);
+        }
+        append(slot, event);
+        if(slot.receiver != null && !slot.paused) {
+            markReady(slot);
+            emitEvents();
+        }
+    }
+
+    /**
+     * Sets the receiver of the key. If the key has enqueued events, the receiver receives them.
+     *
+     * @param key      the key
+     * @param receiver the receiver, or null to detach the current receiver
+     */
+    public void setReceiver(@Nonnull K key, @Nullable CommandQueue.Receiver<T> receiver) {
+        verifyCurrentThread();
+
+        //noinspection ConstantConditions
+        if(key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        Slot<K, T> slot = slots.get(key);
+        if(slot == null) {
+            if(receiver == null) {
+                return;
+            }
+            slot = new Slot<K, T>(key);
+            slots.put(key, slot);
+        }
+        slot.receiver = receiver;
+        if(receiver == null) {
+            removeIfIdle(slot);
+        } else if(slot.count > 0 && !slot.paused) {
+            markReady(slot);
+            emitEvents();
+        }
+    }
+
+    /**
+     * Removes the receiver of the key.
+     *
+     * @param key the key
+     */
+    public void detachReceiver(@Nonnull K key) {
+        setReceiver(key, null);
+    }
+
+    /**
+     * Returns if the key has a receiver.
+     *
+     * @param key the key
+     * @return whether the key has a receiver
+     */
+    public boolean hasReceiver(@Nonnull K key) {
+        verifyCurrentThread();
+        Slot<K, T> slot = slots.get(key);
+        return slot != null && slot.receiver != null;
+    }
+
+    /**
+     * Sets whether the key is paused. A paused key emits its events only when it is unpaused, and has a receiver.
+     *
+     * @param key    the key
+     * @param paused whether the key is paused
+     */
+    public void setPaused(@Nonnull K key, boolean paused) {
+        verifyCurrentThread();
+
+        //noinspection ConstantConditions
+        if(key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        Slot<K, T> slot = slots.get(key);
+        if(slot == null) {
+            if(!paused) {
+                return;
+            }
+            slot = new Slot<K, T>(key);
+            slots.put(key, slot);
+        }
+        final boolean wasPaused = slot.paused;
+
+        slot.paused = paused;
+
+        if(wasPaused && !paused) {
+            if(slot.receiver != null && slot.count > 0) {
+                markReady(slot);
+                emitEvents();
+            } else {
+                removeIfIdle(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns if the key is paused.
+     *
+     * @param key the key
+     * @return whether the key is paused
+     */
+    public boolean isPaused(@Nonnull K key) {
+        verifyCurrentThread();
+        Slot<K, T> slot = slots.get(key);
+        return slot != null && slot.paused;
+    }
+
+    /**
+     * Returns the number of events enqueued for the key.
+     *
+     * @param key the key
+     * @return the number of enqueued events
+     */
+    public int getQueuedEventCount(@Nonnull K key) {
+        verifyCurrentThread();
+        Slot<K, T> slot = slots.get(key);
+        return slot != null ? slot.count : 0;
+    }
+
+    /**
+     * Returns the number of events enqueued for every key.
+     *
+     * @return the number of enqueued events
+     */
+    public int getQueuedEventCount() {
+        verifyCurrentThread();
+        return eventCount;
+    }
+
+    /**
+     * Returns the number of keys that have a receiver, are paused, or have enqueued events.
+     *
+     * @return the number of keys
+     */
+    public int getKeyCount() {
+        verifyCurrentThread();
+        return slots.size();
+    }
+
+    private void markReady(Slot<K, T> slot) {
+        if(!slot.ready) {
+            slot.ready = true;
+            readySlots.add(slot);
+        }
+    }
+
+    private void emitEvents() {
+        if(isEmittingEvents) {
+            return; // the outer loop emits the events of the keys that became ready
+        }
+        isEmittingEvents = true;
+        try {
+            Slot<K, T> slot;
+            while((slot = readySlots.peek()) != null) {
+                while(slot.receiver != null && !slot.paused && slot.count > 0) {
+                    slot.receiver.receiveCommand(removeFirst(slot));
+                }
+                readySlots.poll(); // only once its events are emitted, so a throwing receiver leaves it ready
+                slot.ready = false;
+                removeIfIdle(slot);
+            }
+        } finally {
+            isEmittingEvents = false;
+        }
+    }
+
+    private void removeIfIdle(Slot<K, T> slot) {
+        if(slot.receiver == null && !slot.paused && slot.count == 0 && !slot.ready) {
+            slots.remove(slot.key);
+        }
+    }
+
+    private void append(Slot<K, T> slot, T event) {
+        int index;
+        if(freeHead != NONE) {
+            index = freeHead;
+            freeHead = next[index];
+        } else {
+            if(usedCount == events.length) {
+                grow();
+            }
+            index = usedCount++;
+        }
+        events[index] = event;
+        next[index] = NONE;
+        if(slot.tail == NONE) {
+            slot.head = index;
+        } else {
+            next[slot.tail] = index;
+        }
+        slot.tail = index;
+        slot.count++;
+        eventCount++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeFirst(Slot<K, T> slot) {
+        int index = slot.head;
+        T event = (T) events[index];
+        slot.head = next[index];
+        if(slot.head == NONE) {
+            slot.tail = NONE;
+        }
+        slot.count--;
+        eventCount--;
+        events[index] = null;
+        next[index] = freeHead;
+        freeHead = index;
+        if(events.length > RETAINED_CAPACITY && eventCount < events.length / 4) {
+            shrink();
+        }
+        return event;
+    }
+
+    private void grow() {
+        int newCapacity = events.length * 2;
+        Object[] newEvents = new Object[newCapacity];
+        int[] newNext = new int[newCapacity];
+        System.arraycopy(events, 0, newEvents, 0, events.length);
+        System.arraycopy(next, 0, newNext, 0, next.length);
+        events = newEvents;
+        next = newNext;
+    }
+
+    /**
+     * Halves the storage, and moves the events of each key to consecutive cells at its start, so the free list is
+     * empty afterwards.
+     */
+    private void shrink() {
+        int newCapacity = Math.max(events.length / 2, RETAINED_CAPACITY);
+        Object[] newEvents = new Object[newCapacity];
+        int[] newNext = new int[newCapacity];
+        int newIndex = 0;
+        for(Slot<K, T> slot : slots.values()) {
+            if(slot.count == 0) {
+                continue;
+            }
+            int index = slot.head;
+            slot.head = newIndex;
+            while(index != NONE) {
+                newEvents[newIndex] = events[index];
+                newNext[newIndex] = newIndex + 1;
+                index = next[index];
+                newIndex++;
+            }
+            newNext[newIndex - 1] = NONE;
+            slot.tail = newIndex - 1;
+        }
+        events = newEvents;
+        next = newNext;
+        freeHead = NONE;
+        usedCount = newIndex;
+    }
+
+    int capacity() {
+        return events.length;
+    }
+
+    private void verifyCurrentThread() {
+        if(ownerThread != Thread.currentThread()) {
+            throw new IllegalStateException(
+                    "A command queue can only be accessed on the thread where it was created.");
+        }
+    }
+}
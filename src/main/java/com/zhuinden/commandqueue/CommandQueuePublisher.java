@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A Reactive Streams {@link Publisher} view of a command queue, with demand based backpressure: the subscriber becomes
+ * the receiver of the command queue, and receives only as many events as it requested. The events it has not requested
+ * yet stay enqueued in the command queue, as if it was paused.
+ *
+ * The command queue allows a single receiver, so the publisher allows a single subscriber at a time, and a cancelled
+ * subscription detaches the receiver. The stream never completes.
+ *
+ * The subscriber is signalled on the thread that owns the command queue, which is the thread it was handed off to with
+ * {@link CommandQueue#handOffTo(Thread)}, if any. The subscription can be requested and cancelled on any thread: on
+ * other threads, the demand is added atomically, and applied on the owner executor. Use
+ * {@code FlowAdapters.toFlowPublisher()} for a {@code java.util.concurrent.Flow.Publisher}.
+ *
+ * A command queue that delivers on a {@link CommandQueue.Builder#deliverOn(Executor)} delivery executor cannot be
+ * published, as its events would be signalled on the delivery executor, concurrently with the errors signalled on the
+ * owner thread.
+ *
+ * Requires the {@code org.reactivestreams:reactive-streams} dependency.
+ *
+ * @param <T> the type of the event
+ */
+public class CommandQueuePublisher<T>
+        implements Publisher<T> {
+    private final CommandQueue<T> commandQueue;
+    private final Executor ownerExecutor;
+
+    private CommandQueueSubscription subscription; // only accessed by the owner thread
+
+    /**
+     * Creates the publisher. Must be called on the thread that owns the command queue.
+     *
+     * @param commandQueue  the command queue
+     * @param ownerExecutor the executor that runs tasks on the thread that owns the command queue
+     * @throws IllegalArgumentException if the command queue delivers its events on a delivery executor
+     */
+    public CommandQueuePublisher(@Nonnull CommandQueue<T> commandQueue, @Nonnull Executor ownerExecutor) {
+        //noinspection ConstantConditions
+        if(commandQueue == null) {
+            throw new IllegalArgumentException("Command queue cannot be null");
+        }
+        //noinspection ConstantConditions
+        if(ownerExecutor == null) {
+            throw new IllegalArgumentException("Owner executor cannot be null");
+        }
+        if(commandQueue.isDeliveredAsync()) {
+            throw new IllegalArgumentException(
+                    "A command queue that delivers on a delivery executor cannot be published, "
+                            + "the subscriber would be signalled on two threads");
+        }
+        this.commandQueue = commandQueue;
+        this.ownerExecutor = ownerExecutor;
+    }
+
+    /**
+     * Subscribes the subscriber. Must be called on the thread that owns the command queue.
+     *
+     * @param subscriber the subscriber
+     */
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        commandQueue.verifyCurrentThread();
+
+        if(subscriber == null) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
+        if(subscription != null && !subscription.isCancelled.get()) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The command queue publisher allows only a single subscriber"));
+            return;
+        }
+        subscription = new CommandQueueSubscription(subscriber);
+        commandQueue.setDemandReceiver(subscription);
+        commandQueue.setReceiver(subscription);
+        subscriber.onSubscribe(subscription);
+        subscription.applyPendingDemand();
+    }
+
+    private final class CommandQueueSubscription
+            implements Subscription, CommandQueue.DemandReceiver<T>, Runnable {
+        private final Subscriber<? super T> subscriber;
+
+        private final AtomicLong pendingDemand = new AtomicLong(0L); // requested, but not yet added to the command queue
+        private final AtomicBoolean isCancelled = new AtomicBoolean(false);
+        private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+        private volatile Throwable error; // signalled on the owner thread
+
+        private boolean isDetached = false; // only accessed by the owner thread
+        private boolean isErrorSignalled = false; // only accessed by the owner thread
+
+        CommandQueueSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void receiveCommand(@Nonnull T command) {
+            subscriber.onNext(command); // the command queue checks isCancelled() before it emits an event
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isCancelled.get();
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                if(isCancelled.compareAndSet(false, true)) {
+                    error = new IllegalArgumentException("Requested demand must be positive, but was [" + n + "]");
+                    scheduleOnOwnerThread();
+                }
+                return;
+            }
+            long current;
+            long updated;
+            do {
+                current = pendingDemand.get();
+                updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while(!pendingDemand.compareAndSet(current, updated));
+            scheduleOnOwnerThread();
+        }
+
+        @Override
+        public void cancel() {
+            if(isCancelled.compareAndSet(false, true)) {
+                scheduleOnOwnerThread();
+            }
+        }
+
+        private void scheduleOnOwnerThread() {
+            if(commandQueue.isOwnerThread()) {
+                run();
+            } else if(isScheduled.compareAndSet(false, true)) {
+                ownerExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            isScheduled.set(false);
+            if(isCancelled.get()) {
+                detach(); // does nothing once a new subscription replaced this one
+                final Throwable currentError = error;
+                if(currentError != null && !isErrorSignalled) {
+                    isErrorSignalled = true;
+                    subscriber.onError(currentError);
+                }
+            } else {
+                applyPendingDemand();
+            }
+        }
+
+        void applyPendingDemand() {
+            long demand = pendingDemand.getAndSet(0L);
+            if(demand > 0 && !isCancelled.get()) {
+                commandQueue.addDemand(demand);
+            }
+        }
+
+        private void detach() {
+            if(isDetached) {
+                return;
+            }
+            isDetached = true;
+            if(commandQueue.getReceiver() == this) {
+                commandQueue.setDemandReceiver(null);
+                commandQueue.detachReceiver();
+            }
+        }
+    }
+}
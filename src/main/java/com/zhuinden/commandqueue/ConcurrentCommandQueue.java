@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A command queue that accepts events from any thread.
+ *
+ * Events sent from a thread other than the one where the queue was created are added to a lock-free inbox. The inbox is
+ * drained on the owner thread: either by a task posted to the consumer executor, or when the owner thread next calls
+ * {@link #sendEvent(Object)}, {@link #setReceiver(Receiver)}, {@link #setPaused(boolean)}, {@link #detachReceiver()} or
+ * {@link #drainPending()}.
+ *
+ * Receivers, pausing, and delivery remain confined to the owner thread. Events from the same producer thread are
+ * delivered in the order they were sent, and the owner thread's own events are ordered after every event that was
+ * already in the inbox.
+ *
+ * @param <T> the type of the event
+ */
+public class ConcurrentCommandQueue<T>
+        extends CommandQueue<T> {
+    private static final class PrioritizedEvent<T> {
+        final T event;
+        final int priority;
+
+        PrioritizedEvent(T event, int priority) {
+            this.event = event;
+            this.priority = priority;
+        }
+    }
+
+    private final MpscLinkedQueue<Object> inbox = new MpscLinkedQueue<Object>(); // events, or prioritized events
+
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+
+    @Nullable
+    private final Executor consumerExecutor;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainPending();
+        }
+    };
+
+    /**
+     * Creates a concurrent command queue without a consumer executor. Events sent from other threads are delivered
+     * when the owner thread next calls the command queue.
+     */
+    public ConcurrentCommandQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a concurrent command queue.
+     *
+     * @param consumerExecutor the executor that runs tasks on the owner thread, or null
+     */
+    public ConcurrentCommandQueue(@Nullable Executor consumerExecutor) {
+        this.consumerExecutor = consumerExecutor;
+    }
+
+    /**
+     * Sends the event. On the owner thread, this behaves like {@link CommandQueue#sendEvent(Object)}. On any other
+     * thread, the event is added to the inbox, and delivered from the owner thread.
+     *
+     * @param event the event
+     */
+    @Override
+    public void sendEvent(@Nonnull T event) {
+        //noinspection ConstantConditions
+        if(event == null) {
+            throw new IllegalArgumentException("Null value is not allowed as an event");
+        }
+        if(isOwnerThread()) {
+            drainInbox();
+            super.sendEvent(event);
+        } else {
+            offerToInbox(event);
+        }
+    }
+
+    /**
+     * Sends the event with the given priority. On the owner thread, this behaves like
+     * {@link CommandQueue#sendEvent(Object, int)}. On any other thread, the priority is verified, then the event is
+     * added to the inbox, and delivered from the owner thread.
+     *
+     * @param event    the event
+     * @param priority the priority
+     * @throws IllegalStateException    if the command queue has no priority lanes
+     * @throws IllegalArgumentException if the command queue has no lane for the priority
+     */
+    @Override
+    public void sendEvent(@Nonnull T event, int priority) {
+        //noinspection ConstantConditions
+        if(event == null) {
+            throw new IllegalArgumentException("Null value is not allowed as an event");
+        }
+        if(isOwnerThread()) {
+            drainInbox();
+            super.sendEvent(event, priority);
+        } else {
+            verifyPriority(priority);
+            offerToInbox(new PrioritizedEvent<T>(event, priority));
+        }
+    }
+
+    /**
+     * Sends the events in order. On the owner thread, this behaves like {@link CommandQueue#sendEvents(Object[])}. On
+     * any other thread, the events are added to the inbox, and delivered from the owner thread.
+     *
+     * @param events the events
+     */
+    @Override
+    void sendEventArray(@Nonnull Object[] events) {
+        if(isOwnerThread()) {
+            drainInbox();
+            super.sendEventArray(events);
+        } else {
+            verifyEvents(events);
+            for(Object event : events) {
+                inbox.offer(event);
+            }
+            scheduleDrain();
+        }
+    }
+
+    private void offerToInbox(@Nonnull Object element) {
+        inbox.offer(element);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if(consumerExecutor != null && isDrainScheduled.compareAndSet(false, true)) {
+            try {
+                consumerExecutor.execute(drainTask);
+            } catch(RuntimeException e) {
+                isDrainScheduled.set(false); // the events stay in the inbox, the next send schedules the drain again
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void setReceiver(@Nullable Receiver<T> receiver) {
+        verifyCurrentThread();
+        drainInbox();
+        super.setReceiver(receiver);
+    }
+
+    @Override
+    public void setPaused(boolean paused) {
+        verifyCurrentThread();
+        drainInbox();
+        super.setPaused(paused);
+    }
+
+    @Override
+    public void detachReceiver() {
+        verifyCurrentThread();
+        drainInbox();
+        super.detachReceiver();
+    }
+
+    /**
+     * Moves the events sent from other threads into the command queue, emitting them if there is a receiver.
+     *
+     * Must be called on the thread where the command queue was created.
+     */
+    public void drainPending() {
+        verifyCurrentThread();
+        drainInbox();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drainInbox() {
+        isDrainScheduled.set(false);
+        Object element;
+        while((element = inbox.poll()) != null) {
+            if(element instanceof PrioritizedEvent) {
+                PrioritizedEvent<T> prioritizedEvent = (PrioritizedEvent<T>) element;
+                super.sendEvent(prioritizedEvent.event, prioritizedEvent.priority);
+            } else {
+                super.sendEvent((T) element);
+            }
+        }
+    }
+}
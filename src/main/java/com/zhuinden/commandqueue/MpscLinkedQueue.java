@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A lock-free, unbounded, multi-producer single-consumer linked queue (based on Dmitry Vyukov's MPSC node queue).
+ *
+ * {@link #offer(Object)} can be called from any thread, and never blocks: it is a single atomic swap of the tail.
+ * {@link #poll()} must only be called by the single consumer.
+ *
+ * @param <T> the type of the element
+ */
+final class MpscLinkedQueue<T> {
+    static final class Node<T> {
+        T value;
+        volatile Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscLinkedQueue, Node> TAIL = AtomicReferenceFieldUpdater.newUpdater(
+            MpscLinkedQueue.class,
+            Node.class,
+            "tail");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT = AtomicReferenceFieldUpdater.newUpdater(Node.class,
+                                                                                                             Node.class,
+                                                                                                             "next");
+
+    private Node<T> head; // only accessed by the consumer
+    private volatile Node<T> tail;
+
+    MpscLinkedQueue() {
+        Node<T> stub = new Node<T>(null);
+        head = stub;
+        tail = stub;
+    }
+
+    /**
+     * Adds the element to the end of the queue. Can be called from any thread.
+     *
+     * @param element the element
+     */
+    @SuppressWarnings("unchecked")
+    void offer(@Nonnull T element) {
+        Node<T> node = new Node<T>(element);
+        Node<T> previous = TAIL.getAndSet(this, node);
+        NEXT.lazySet(previous, node); // the consumer spins on a null next while the tail is already swapped
+    }
+
+    /**
+     * Removes the element at the head of the queue. Must only be called by the consumer.
+     *
+     * @return the element, or null if the queue is empty
+     */
+    @Nullable
+    T poll() {
+        Node<T> currentHead = head;
+        Node<T> next = currentHead.next;
+        if(next == null) {
+            if(currentHead == tail) {
+                return null;
+            }
+            while((next = currentHead.next) == null) {
+                // a producer has swapped the tail, but has not linked its node yet
+            }
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Returns if the queue is empty. Must only be called by the consumer.
+     *
+     * @return whether the queue is empty
+     */
+    boolean isEmpty() {
+        return head == tail;
+    }
+}
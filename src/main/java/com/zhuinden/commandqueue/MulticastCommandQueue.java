@@ -0,0 +1,258 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.ArrayList;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A command queue that delivers every event to each of its receivers.
+ *
+ * The events are kept in a single shared buffer, and every receiver has its own cursor into it, so an event is stored
+ * only once regardless of the number of receivers. An event is removed from the buffer once every receiver has
+ * received it. Each receiver can be paused separately: a paused receiver receives the events it missed, in order, when
+ * it is unpaused.
+ *
+ * Events sent while there are no receivers are enqueued, and emitted to the first receiver that is added. A receiver
+ * added while there are other receivers only receives the events sent after it was added.
+ *
+ * The command queue can only be accessed on the thread where it was created.
+ *
+ * @param <T> the type of the event
+ */
+public class MulticastCommandQueue<T> {
+    private static final class Cursor<T> {
+        final CommandQueue.Receiver<T> receiver;
+        long sequence;
+        boolean paused;
+        boolean removed;
+
+        Cursor(CommandQueue.Receiver<T> receiver, long sequence) {
+            this.receiver = receiver;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Thread ownerThread = Thread.currentThread();
+
+    private final RingBuffer<T> events = new RingBuffer<T>();
+
+    private final ArrayList<Cursor<T>> cursors = new ArrayList<Cursor<T>>();
+
+    private boolean isEmittingEvents = false;
+    private boolean hasRemovedCursors = false;
+    private long removedTailSequence; // the events before it were sent to a receiver that is removed since
+
+    public MulticastCommandQueue() {
+    }
+
+    /**
+     * Adds the receiver. If there were no receivers, the receiver receives the enqueued events.
+     *
+     * @param receiver the receiver
+     * @throws IllegalArgumentException if the receiver was already added
+     */
+    public void addReceiver(@Nonnull CommandQueue.Receiver<T> receiver) {
+        verifyCurrentThread();
+
+        //noinspection ConstantConditions
+        if(receiver == null) {
+            throw new IllegalArgumentException("Receiver cannot be null");
+        }
+        if(findCursor(receiver) != null) {
+            throw new IllegalArgumentException("The receiver [" + receiver + "] was already added");
+        }
+        boolean isFirstReceiver = getReceiverCount() == 0;
+        cursors.add(new Cursor<T>(receiver, isFirstReceiver ? events.headSequence() : events.tailSequence()));
+        if(isFirstReceiver) {
+            emitEvents();
+        }
+    }
+
+    /**
+     * Removes the receiver. The events that only this receiver has not received yet are discarded.
+     *
+     * @param receiver the receiver
+     */
+    public void removeReceiver(@Nonnull CommandQueue.Receiver<T> receiver) {
+        verifyCurrentThread();
+
+        Cursor<T> cursor = findCursor(receiver);
+        if(cursor == null) {
+            return;
+        }
+        cursor.removed = true;
+        removedTailSequence = events.tailSequence();
+        if(isEmittingEvents) {
+            hasRemovedCursors = true; // removed once the cursors are no longer iterated
+        } else {
+            cursors.remove(cursor);
+            onCursorsRemoved();
+        }
+    }
+
+    /**
+     * Returns if the receiver is added.
+     *
+     * @param receiver the receiver
+     * @return whether the receiver is added
+     */
+    public boolean hasReceiver(@Nonnull CommandQueue.Receiver<T> receiver) {
+        verifyCurrentThread();
+        return findCursor(receiver) != null;
+    }
+
+    /**
+     * Returns the number of receivers.
+     *
+     * @return the number of receivers
+     */
+    public int getReceiverCount() {
+        verifyCurrentThread();
+        int count = 0;
+        for(int i = 0, size = cursors.size(); i < size; i++) {
+            if(!cursors.get(i).removed) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sets whether the receiver is paused. A paused receiver receives the events it missed when it is unpaused.
+     *
+     * @param receiver the receiver
+     * @param paused   whether the receiver is paused
+     * @throws IllegalArgumentException if the receiver was not added
+     */
+    public void setPaused(@Nonnull CommandQueue.Receiver<T> receiver, boolean paused) {
+        verifyCurrentThread();
+
+        Cursor<T> cursor = findCursor(receiver);
+        if(cursor == null) {
+            throw new IllegalArgumentException("The receiver [" + receiver + "] was not added");
+        }
+        final boolean wasPaused = cursor.paused;
+
+        cursor.paused = paused;
+
+        if(wasPaused && !paused) {
+            emitEvents();
+        }
+    }
+
+    /**
+     * Sends the event to every receiver that is not paused. The event is kept until every receiver has received it.
+     *
+     * @param event the event
+     */
+    public void sendEvent(@Nonnull final T event) {
+        verifyCurrentThread();
+
+        //noinspection ConstantConditions
+        if(event == null) {
+            throw new IllegalArgumentException("Null value is not allowed as an event");
+        }
+        events.offer(event);
+        emitEvents();
+    }
+
+    /**
+     * Returns the number of events kept in the shared buffer.
+     *
+     * @return the number of buffered events
+     */
+    public int getBufferedEventCount() {
+        verifyCurrentThread();
+        return events.size();
+    }
+
+    private void emitEvents() {
+        if(isEmittingEvents) {
+            return; // the outer loop emits the events that are sent or unpaused by a receiver
+        }
+        isEmittingEvents = true;
+        try {
+            boolean hasEmittedEvents;
+            do {
+                hasEmittedEvents = false;
+                for(int i = 0; i < cursors.size(); i++) {
+                    Cursor<T> cursor = cursors.get(i);
+                    while(!cursor.paused && !cursor.removed && cursor.sequence < events.tailSequence()) {
+                        T event = events.get(cursor.sequence);
+                        cursor.sequence++;
+                        hasEmittedEvents = true;
+                        cursor.receiver.receiveCommand(event);
+                    }
+                }
+            } while(hasEmittedEvents);
+        } finally {
+            isEmittingEvents = false;
+            if(hasRemovedCursors) {
+                hasRemovedCursors = false;
+                for(int i = cursors.size() - 1; i >= 0; i--) {
+                    if(cursors.get(i).removed) {
+                        cursors.remove(i);
+                    }
+                }
+                onCursorsRemoved();
+            } else {
+                reclaimEvents();
+            }
+        }
+    }
+
+    private void onCursorsRemoved() {
+        if(cursors.isEmpty()) {
+            while(events.headSequence() < removedTailSequence) {
+                events.poll(); // these were sent to the removed receivers, the rest are enqueued for the next one
+            }
+        } else {
+            reclaimEvents();
+        }
+    }
+
+    private void reclaimEvents() {
+        if(cursors.isEmpty()) {
+            return; // keep the events for the first receiver
+        }
+        long slowestSequence = Long.MAX_VALUE;
+        for(int i = 0, size = cursors.size(); i < size; i++) {
+            slowestSequence = Math.min(slowestSequence, cursors.get(i).sequence);
+        }
+        while(events.headSequence() < slowestSequence) {
+            events.poll();
+        }
+    }
+
+    private Cursor<T> findCursor(CommandQueue.Receiver<T> receiver) {
+        for(int i = 0, size = cursors.size(); i < size; i++) {
+            Cursor<T> cursor = cursors.get(i);
+            if(cursor.receiver == receiver && !cursor.removed) {
+                return cursor;
+            }
+        }
+        return null;
+    }
+
+    private void verifyCurrentThread() {
+        if(ownerThread != Thread.currentThread()) {
+            throw new IllegalStateException(
+                    "A command queue can only be accessed on the thread where it was created.");
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An append-only log of enqueued events in a memory-mapped file, used by a persistent command queue.
+ *
+ * Every enqueued event is appended as a record, and identified by the sequence number it has in the queue's buffer.
+ * Records are acknowledged once their event is delivered. Acknowledged records are reclaimed: the log rewinds to the
+ * start when every record is acknowledged, and before the file would have to grow, the live records are copied to a
+ * free region, leaving the acknowledged ones behind, if that frees enough space.
+ *
+ * The head and the tail are committed by a single write, and compaction never overwrites a live record: the live records
+ * are copied below the head if they fit, otherwise after the tail (the file keeps room for that), and then from there to
+ * the start. So the log is consistent whenever the process is killed, even in the middle of a compaction.
+ *
+ * Writes go to the mapped memory, so they survive the process being killed without an fsync. The file is only forced to
+ * the storage device after every {@code syncEvery} appends, which protects against losing the operating system too.
+ *
+ * The file layout is a header of [magic, version, head offset, tail offset] (the offsets are 32-bit halves of a single
+ * long), followed by records of [payload length, status, payload].
+ *
+ * Not thread-safe: it is only accessed on the thread that owns the command queue.
+ *
+ * @param <T> the type of the event
+ */
+final class PersistentLog<T> {
+    private static final int MAGIC = 0x43514C47; // CQLG
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_POSITION = 0;
+    private static final int VERSION_POSITION = 4;
+    private static final int BOUNDS_POSITION = 8; // the head and the tail, in a single long so that one write commits both
+    static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_HEADER_SIZE = 5;
+    private static final byte STATUS_LIVE = 1;
+    private static final byte STATUS_ACKNOWLEDGED = 2;
+
+    static final int INITIAL_FILE_SIZE = 64 * 1024;
+
+    private static final int COMPACTION_CHUNK_SIZE = 8 * 1024;
+
+    private final FileChannel fileChannel;
+    private final CommandQueue.Codec<T> codec;
+    private final int syncEvery;
+
+    private MappedByteBuffer buffer;
+    private byte[] compactionChunk;
+    private int head;
+    private int tail;
+    private int liveBytes; // the size of the live records between the head and the tail
+    private int unsyncedAppends;
+
+    // offsets of the records of the sequences [firstSequence, firstSequence + offsetCount), -1 once acknowledged
+    private long firstSequence;
+    private int[] offsets = new int[16];
+    private int offsetsHead;
+    private int offsetCount;
+
+    // offsets of the live records read by readLiveRecords(), and the one that is being restored, or -1
+    private int[] restoredOffsets;
+    private int restoringOffset = -1;
+
+    private PersistentLog(FileChannel fileChannel, CommandQueue.Codec<T> codec, int syncEvery) {
+        this.fileChannel = fileChannel;
+        this.codec = codec;
+        this.syncEvery = syncEvery;
+    }
+
+    /**
+     * Opens or creates the log in the given file.
+     *
+     * @param file      the file
+     * @param codec     the codec of the events
+     * @param syncEvery the number of appends after which the file is forced to storage, or 0 to never force it
+     * @return the log
+     * @throws IOException if the file could not be opened, or is not a command queue log
+     */
+    static <T> PersistentLog<T> open(@Nonnull File file, @Nonnull CommandQueue.Codec<T> codec, int syncEvery)
+            throws IOException {
+        @SuppressWarnings("resource") // the channel is kept open for the lifetime of the command queue
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        PersistentLog<T> persistentLog = new PersistentLog<T>(fileChannel, codec, syncEvery);
+        try {
+            persistentLog.initialize();
+        } catch(IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+        return persistentLog;
+    }
+
+    private void initialize()
+            throws IOException {
+        long size = fileChannel.size();
+        if(size == 0) {
+            map(INITIAL_FILE_SIZE);
+            buffer.putInt(MAGIC_POSITION, MAGIC);
+            buffer.putInt(VERSION_POSITION, VERSION);
+            setBounds(HEADER_SIZE, HEADER_SIZE);
+            return;
+        }
+        if(size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("The file is not a command queue log, its size is [" + size + "]");
+        }
+        map((int) size);
+        if(buffer.getInt(MAGIC_POSITION) != MAGIC || buffer.getInt(VERSION_POSITION) != VERSION) {
+            throw new IOException("The file is not a command queue log of version [" + VERSION + "]");
+        }
+        long bounds = buffer.getLong(BOUNDS_POSITION);
+        head = (int) (bounds >>> 32);
+        tail = (int) bounds;
+        if(head < HEADER_SIZE || tail < head || tail > size) {
+            throw new IOException("The command queue log is corrupted, head [" + head + "] tail [" + tail + "]");
+        }
+        int position = head;
+        while(position < tail) {
+            int recordSize = RECORD_HEADER_SIZE + buffer.getInt(position);
+            if(buffer.get(position + 4) == STATUS_LIVE) {
+                liveBytes += recordSize;
+            }
+            position += recordSize;
+        }
+    }
+
+    /**
+     * Reads the events of the live records, in order. The records are not bound to sequence numbers yet: each event
+     * should be enqueued again between {@link #beginRestore(int)} and {@link #endRestore()}, so that its record is
+     * bound to the sequence number it gets, instead of being written again.
+     *
+     * @param events the list that receives the events
+     */
+    void readLiveRecords(@Nonnull List<T> events) {
+        int[] liveOffsets = new int[16];
+        int liveCount = 0;
+        int position = head;
+        while(position < tail) {
+            int length = buffer.getInt(position);
+            if(buffer.get(position + 4) == STATUS_LIVE) {
+                byte[] bytes = new byte[length];
+                ByteBuffer duplicate = buffer.duplicate();
+                duplicate.position(position + RECORD_HEADER_SIZE);
+                duplicate.get(bytes);
+                events.add(codec.decode(bytes));
+                if(liveCount == liveOffsets.length) {
+                    liveOffsets = Arrays.copyOf(liveOffsets, liveCount * 2);
+                }
+                liveOffsets[liveCount++] = position;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        restoredOffsets = liveOffsets;
+    }
+
+    /**
+     * Starts restoring the event at the given index of {@link #readLiveRecords(List)}: until {@link #endRestore()},
+     * appending or replacing an event binds the existing record, instead of writing a new one.
+     *
+     * @param index the index of the event
+     */
+    void beginRestore(int index) {
+        restoringOffset = restoredOffsets[index];
+    }
+
+    /**
+     * Finishes restoring an event. If the event was not enqueued again (for example it was dropped), its record is
+     * acknowledged.
+     */
+    void endRestore() {
+        if(restoringOffset != -1) {
+            markAcknowledged(restoringOffset);
+            restoringOffset = -1;
+            advanceHead();
+        }
+    }
+
+    /**
+     * Releases the offsets of the restored records, once every event is restored.
+     */
+    void finishRestore() {
+        restoredOffsets = null;
+    }
+
+    /**
+     * Appends the event of the given sequence number, which must be the sequence number after the last appended one.
+     *
+     * @param sequence the sequence number of the event
+     * @param event    the event
+     */
+    void append(long sequence, @Nonnull T event) {
+        if(offsetCount == 0) {
+            firstSequence = sequence;
+        } else if(sequence != firstSequence + offsetCount) {
+            throw new IllegalStateException(
+                    "Expected sequence [" + (firstSequence + offsetCount) + "] but was [" + sequence + "]");
+        }
+        int offset = restoringOffset != -1 ? bindRestoredRecord() : writeRecord(event);
+        if(offsetCount == offsets.length) {
+            growOffsets();
+        }
+        offsets[(offsetsHead + offsetCount) & (offsets.length - 1)] = offset;
+        offsetCount++;
+    }
+
+    /**
+     * Replaces the event of the given sequence number: its record is acknowledged, and a new record is appended.
+     *
+     * @param sequence the sequence number of the event
+     * @param event    the new event
+     */
+    void replace(long sequence, @Nonnull T event) {
+        int index = offsetIndex(sequence);
+        int offset = restoringOffset != -1 ? bindRestoredRecord() : writeRecord(event);
+        markAcknowledged(offsets[index]);
+        offsets[index] = offset;
+        advanceHead();
+    }
+
+    /**
+     * Acknowledges the records of the sequence numbers [fromSequence, toSequence).
+     *
+     * @param fromSequence the first sequence number, inclusive
+     * @param toSequence   the last sequence number, exclusive
+     */
+    void acknowledge(long fromSequence, long toSequence) {
+        for(long sequence = fromSequence; sequence < toSequence; sequence++) {
+            int index = offsetIndex(sequence);
+            if(offsets[index] != -1) {
+                markAcknowledged(offsets[index]);
+                offsets[index] = -1;
+            }
+        }
+        while(offsetCount > 0 && offsets[offsetsHead] == -1) {
+            offsetsHead = (offsetsHead + 1) & (offsets.length - 1);
+            offsetCount--;
+            firstSequence++;
+        }
+        advanceHead();
+    }
+
+    /**
+     * Forces the written records to the storage device.
+     */
+    void sync() {
+        unsyncedAppends = 0;
+        buffer.force();
+    }
+
+    /**
+     * Closes the file. The log must not be used after it is closed. The mapping is released once it is garbage
+     * collected, as a mapped buffer cannot be unmapped explicitly.
+     */
+    void close() {
+        if(buffer == null) {
+            return;
+        }
+        if(syncEvery > 0) {
+            sync();
+        }
+        buffer = null;
+        offsets = null;
+        try {
+            fileChannel.close();
+        } catch(IOException e) {
+            throw new IllegalStateException("Could not close the command queue log", e);
+        }
+    }
+
+    int head() {
+        return head;
+    }
+
+    int tail() {
+        return tail;
+    }
+
+    int liveBytes() {
+        return liveBytes;
+    }
+
+    private int offsetIndex(long sequence) {
+        if(sequence < firstSequence || sequence >= firstSequence + offsetCount) {
+            throw new IllegalStateException("Sequence [" + sequence + "] has no record");
+        }
+        return (offsetsHead + (int) (sequence - firstSequence)) & (offsets.length - 1);
+    }
+
+    private void growOffsets() {
+        int[] newOffsets = new int[offsets.length * 2];
+        int firstPart = Math.min(offsetCount, offsets.length - offsetsHead);
+        System.arraycopy(offsets, offsetsHead, newOffsets, 0, firstPart);
+        System.arraycopy(offsets, 0, newOffsets, firstPart, offsetCount - firstPart);
+        offsets = newOffsets;
+        offsetsHead = 0;
+    }
+
+    private int bindRestoredRecord() {
+        int offset = restoringOffset;
+        restoringOffset = -1;
+        return offset;
+    }
+
+    private int writeRecord(@Nonnull T event) {
+        byte[] bytes = codec.encode(event);
+        int recordSize = RECORD_HEADER_SIZE + bytes.length;
+        ensureCapacity(recordSize);
+        int offset = tail;
+        buffer.putInt(offset, bytes.length);
+        buffer.put(offset + 4, STATUS_LIVE);
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset + RECORD_HEADER_SIZE);
+        duplicate.put(bytes);
+        setBounds(head, offset + recordSize); // the record only becomes part of the log once the tail is written
+        liveBytes += recordSize;
+        if(syncEvery > 0 && ++unsyncedAppends >= syncEvery) {
+            sync();
+        }
+        return offset;
+    }
+
+    private void markAcknowledged(int offset) {
+        buffer.put(offset + 4, STATUS_ACKNOWLEDGED);
+        liveBytes -= RECORD_HEADER_SIZE + buffer.getInt(offset);
+    }
+
+    private void advanceHead() {
+        int position = head;
+        while(position < tail && buffer.get(position + 4) == STATUS_ACKNOWLEDGED) {
+            position += RECORD_HEADER_SIZE + buffer.getInt(position);
+        }
+        if(position == tail) {
+            setBounds(HEADER_SIZE, HEADER_SIZE); // everything is acknowledged, so start over
+        } else if(position != head) {
+            setBounds(position, tail);
+        }
+    }
+
+    /**
+     * Returns if the record fits, and a copy of the live records still fits after it, for a later compaction.
+     */
+    private boolean hasRoomFor(int recordSize) {
+        return (long) tail + recordSize + liveBytes + recordSize <= buffer.capacity();
+    }
+
+    private void ensureCapacity(int recordSize) {
+        if(hasRoomFor(recordSize)) {
+            return;
+        }
+        int usedBytes = tail - HEADER_SIZE;
+        // only when a quarter is reclaimed, so that appends do not keep copying the same live records
+        if(usedBytes - liveBytes >= usedBytes / 4) {
+            compact();
+            if(hasRoomFor(recordSize)) {
+                return;
+            }
+        }
+        grow((long) tail + recordSize + liveBytes + recordSize);
+    }
+
+    private void grow(long minSize) {
+        long newSize = buffer.capacity();
+        while(newSize < minSize) {
+            newSize *= 2;
+        }
+        if(newSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The command queue log cannot grow beyond 2 GB");
+        }
+        try {
+            map((int) newSize);
+        } catch(IOException e) {
+            throw new IllegalStateException("The command queue log could not grow to [" + newSize + "] bytes", e);
+        }
+    }
+
+    /**
+     * Copies the live records to the start of the log, leaving the acknowledged records behind. The live records are
+     * copied directly below the head if they fit there, otherwise first after the tail.
+     */
+    private void compact() {
+        if(HEADER_SIZE + liveBytes <= head) {
+            copyLiveRecords(HEADER_SIZE);
+            return;
+        }
+        if((long) tail + liveBytes > buffer.capacity()) {
+            grow((long) tail + liveBytes);
+        }
+        int copyStart = tail;
+        copyLiveRecords(copyStart);
+        copy(copyStart, HEADER_SIZE, liveBytes); // below the new head, so the copy after the tail stays intact
+        int shift = copyStart - HEADER_SIZE;
+        for(int i = 0; i < offsetCount; i++) {
+            int index = (offsetsHead + i) & (offsets.length - 1);
+            if(offsets[index] != -1) {
+                offsets[index] -= shift;
+            }
+        }
+        commitBounds(HEADER_SIZE, HEADER_SIZE + liveBytes);
+    }
+
+    /**
+     * Copies the live records between the head and the tail to the given position, which must be outside of them, and
+     * makes the copy the new content of the log.
+     */
+    private void copyLiveRecords(int target) {
+        long[] liveIndices = new long[offsetCount]; // the offset and the index of the bound records, ordered by offset
+        int liveCount = 0;
+        for(int i = 0; i < offsetCount; i++) {
+            int index = (offsetsHead + i) & (offsets.length - 1);
+            if(offsets[index] != -1) {
+                liveIndices[liveCount++] = ((long) offsets[index] << 32) | index;
+            }
+        }
+        Arrays.sort(liveIndices, 0, liveCount);
+
+        int targetPosition = target;
+        int nextLive = 0;
+        int position = head;
+        while(position < tail) {
+            int recordSize = RECORD_HEADER_SIZE + buffer.getInt(position);
+            if(buffer.get(position + 4) == STATUS_LIVE) {
+                if(nextLive < liveCount && (int) (liveIndices[nextLive] >>> 32) == position) {
+                    offsets[(int) liveIndices[nextLive]] = targetPosition;
+                    nextLive++;
+                }
+                copy(position, targetPosition, recordSize);
+                targetPosition += recordSize;
+            }
+            position += recordSize;
+        }
+        commitBounds(target, targetPosition);
+    }
+
+    private void copy(int from, int to, int length) {
+        if(compactionChunk == null) {
+            compactionChunk = new byte[COMPACTION_CHUNK_SIZE];
+        }
+        byte[] chunk = compactionChunk;
+        ByteBuffer source = buffer.duplicate();
+        ByteBuffer target = buffer.duplicate();
+        source.position(from);
+        target.position(to);
+        int remaining = length;
+        while(remaining > 0) {
+            int chunkLength = Math.min(chunk.length, remaining);
+            source.get(chunk, 0, chunkLength);
+            target.put(chunk, 0, chunkLength);
+            remaining -= chunkLength;
+        }
+    }
+
+    /**
+     * Switches the log to the copied records. If the file is synced, the copy is forced to storage first, so the new
+     * bounds never reach the storage device before the records they point to.
+     */
+    private void commitBounds(int head, int tail) {
+        if(syncEvery > 0) {
+            buffer.force();
+        }
+        setBounds(head, tail);
+    }
+
+    private void map(int size)
+            throws IOException {
+        buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void setBounds(int head, int tail) {
+        this.head = head;
+        this.tail = tail;
+        buffer.putLong(BOUNDS_POSITION, ((long) head << 32) | tail);
+    }
+}
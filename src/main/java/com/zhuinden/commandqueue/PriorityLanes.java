@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The enqueued events of a prioritized command queue: one FIFO ring buffer per priority, where lane 0 has the highest
+ * priority.
+ *
+ * Without weights, the next event always comes from the highest priority lane that is not empty. With weights, the
+ * lanes are drained in weighted round-robin: each lane in turn emits up to its weight of events, so lower priority
+ * lanes still make progress while higher priority lanes are busy.
+ *
+ * Not thread-safe: it is only accessed on the thread that owns the command queue.
+ *
+ * @param <T> the type of the event
+ */
+final class PriorityLanes<T> {
+    private final RingBuffer<T>[] lanes;
+
+    @Nullable
+    private final int[] weights; // null for strict priority
+
+    private int size;
+
+    private int currentLane;
+    private int remainingCredit;
+
+    /**
+     * Creates the lanes.
+     *
+     * @param laneCount the number of lanes
+     * @param weights   the weight of each lane for weighted round-robin, or null for strict priority
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    PriorityLanes(int laneCount, @Nullable int[] weights) {
+        this.lanes = (RingBuffer<T>[]) new RingBuffer[laneCount];
+        for(int i = 0; i < laneCount; i++) {
+            lanes[i] = new RingBuffer<T>();
+        }
+        this.weights = weights;
+        if(weights != null) {
+            remainingCredit = weights[0];
+        }
+    }
+
+    void enableStamps() {
+        for(RingBuffer<T> lane : lanes) {
+            lane.enableStamps();
+        }
+    }
+
+    int laneCount() {
+        return lanes.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds the event to the end of its lane.
+     *
+     * @param event    the event
+     * @param priority the lane of the event
+     * @param stamp    the stamp of the event, if stamps are enabled
+     */
+    void offer(@Nonnull T event, int priority, long stamp) {
+        lanes[priority].offer(event, stamp);
+        size++;
+    }
+
+    /**
+     * Adds the event to the head of its lane, so that it is the next event of the lane.
+     *
+     * @param event    the event
+     * @param priority the lane of the event
+     * @param stamp    the stamp of the event, if stamps are enabled
+     */
+    void offerFirst(@Nonnull T event, int priority, long stamp) {
+        lanes[priority].offerFirst(event, stamp);
+        size++;
+    }
+
+    @Nonnull
+    RingBuffer<T> lane(int priority) {
+        return lanes[priority];
+    }
+
+    /**
+     * Removes the event at the head of the lane, outside of the order of {@link #nextLane()}.
+     *
+     * @param priority the lane
+     * @return the event
+     */
+    @Nonnull
+    T poll(int priority) {
+        size--;
+        return lanes[priority].poll();
+    }
+
+    /**
+     * Returns the lane that the next event should be polled from, and charges it for that event. Must only be called if
+     * the lanes are not empty, and the event must be polled from the returned lane.
+     *
+     * @return the priority of the lane
+     */
+    int nextLane() {
+        size--;
+        if(weights == null) {
+            for(int priority = 0; priority < lanes.length; priority++) {
+                if(!lanes[priority].isEmpty()) {
+                    return priority;
+                }
+            }
+        } else {
+            while(true) {
+                if(remainingCredit > 0 && !lanes[currentLane].isEmpty()) {
+                    remainingCredit--;
+                    return currentLane;
+                }
+                currentLane = (currentLane + 1) % lanes.length; // an empty lane forfeits the rest of its turn
+                remainingCredit = weights[currentLane];
+            }
+        }
+        throw new IllegalStateException("The priority lanes are empty");
+    }
+
+    /**
+     * Returns the smallest stamp of the events at the head of the lanes. Requires stamps to be enabled.
+     *
+     * @return the oldest stamp, or {@link Long#MAX_VALUE} if the lanes are empty
+     */
+    long oldestStamp() {
+        long oldestStamp = Long.MAX_VALUE;
+        for(RingBuffer<T> lane : lanes) {
+            if(!lane.isEmpty()) {
+                oldestStamp = Math.min(oldestStamp, lane.getStamp(lane.headSequence()));
+            }
+        }
+        return oldestStamp;
+    }
+}
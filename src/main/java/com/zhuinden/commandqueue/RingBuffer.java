@@ -0,0 +1,352 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An array-backed, optionally bounded FIFO queue that is not thread-safe.
+ *
+ * The size is tracked in a field, so checking whether the queue is full is constant-time, and offering an element
+ * never allocates once the backing array is large enough. The backing array is reused, and it only shrinks back once
+ * a large backlog has been drained.
+ *
+ * @param <T> the type of the element
+ */
+final class RingBuffer<T>
+        extends AbstractQueue<T> {
+    /**
+     * Capacities above this are not preallocated, the array grows up to the capacity as needed.
+     */
+    static final int MAX_PREALLOCATED_CAPACITY = 4096;
+
+    /**
+     * The initial length of the backing array of an unbounded buffer.
+     */
+    static final int INITIAL_UNBOUNDED_LENGTH = 16;
+
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int capacity;
+    private final int retainedLength;
+
+    private Object[] elements;
+    private long[] stamps; // null unless stamps are enabled
+    private int head;
+    private int size;
+    private long headSequence;
+
+    /**
+     * Creates an unbounded buffer.
+     */
+    RingBuffer() {
+        this.capacity = Integer.MAX_VALUE;
+        this.retainedLength = MAX_PREALLOCATED_CAPACITY;
+        this.elements = new Object[INITIAL_UNBOUNDED_LENGTH];
+    }
+
+    /**
+     * Creates a buffer that holds at most the given number of elements.
+     *
+     * @param capacity the capacity
+     */
+    RingBuffer(int capacity) {
+        if(capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative, but was [" + capacity + "]");
+        }
+        this.capacity = capacity;
+        this.retainedLength = Math.min(capacity, MAX_PREALLOCATED_CAPACITY);
+        this.elements = new Object[retainedLength];
+    }
+
+    int length() {
+        return elements.length;
+    }
+
+    /**
+     * Stores a stamp (such as a timestamp) next to every element offered with {@link #offer(Object, long)}.
+     */
+    void enableStamps() {
+        if(stamps == null) {
+            stamps = new long[elements.length];
+        }
+    }
+
+    long getStamp(long sequence) {
+        return stamps[indexOf(sequence)];
+    }
+
+    void setStamp(long sequence, long stamp) {
+        stamps[indexOf(sequence)] = stamp;
+    }
+
+    /**
+     * Returns the sequence number of the element at the head. Every offered element gets the next sequence number,
+     * which stays valid until the element is polled.
+     *
+     * @return the sequence number of the head
+     */
+    long headSequence() {
+        return headSequence;
+    }
+
+    /**
+     * Returns the sequence number that the next offered element will get.
+     *
+     * @return the sequence number of the tail
+     */
+    long tailSequence() {
+        return headSequence + size;
+    }
+
+    /**
+     * Returns if the element with the given sequence number is still in the buffer.
+     *
+     * @param sequence the sequence number
+     * @return whether the element is in the buffer
+     */
+    boolean containsSequence(long sequence) {
+        return sequence >= headSequence && sequence < headSequence + size;
+    }
+
+    T get(long sequence) {
+        @SuppressWarnings("unchecked") T element = (T) elements[indexOf(sequence)];
+        return element;
+    }
+
+    void set(long sequence, @Nonnull T element) {
+        elements[indexOf(sequence)] = element;
+    }
+
+    private int indexOf(long sequence) {
+        if(!containsSequence(sequence)) {
+            throw new IndexOutOfBoundsException(
+                    "Sequence [" + sequence + "] is not in [" + headSequence + ", " + (headSequence + size) + ")");
+        }
+        int index = head + (int) (sequence - headSequence);
+        if(index >= elements.length) {
+            index -= elements.length;
+        }
+        return index;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    @Override
+    public boolean offer(@Nonnull T element) {
+        return offer(element, 0L);
+    }
+
+    /**
+     * Adds the element with the given stamp, if stamps are enabled.
+     *
+     * @param element the element
+     * @param stamp   the stamp
+     * @return whether the element was added
+     */
+    boolean offer(@Nonnull T element, long stamp) {
+        if(size == capacity) {
+            return false;
+        }
+        if(size == elements.length) {
+            grow();
+        }
+        int tail = head + size;
+        if(tail >= elements.length) {
+            tail -= elements.length;
+        }
+        elements[tail] = element;
+        if(stamps != null) {
+            stamps[tail] = stamp;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds the element in front of the head, with the given stamp if stamps are enabled. It gets the sequence number
+     * before the sequence number of the head.
+     *
+     * @param element the element
+     * @param stamp   the stamp
+     * @return whether the element was added
+     */
+    boolean offerFirst(@Nonnull T element, long stamp) {
+        if(size == capacity) {
+            return false;
+        }
+        if(size == elements.length) {
+            grow();
+        }
+        head = head == 0 ? elements.length - 1 : head - 1;
+        elements[head] = element;
+        if(stamps != null) {
+            stamps[head] = stamp;
+        }
+        size++;
+        headSequence--;
+        return true;
+    }
+
+    /**
+     * Adds the elements of the array in order, as many as fit within the capacity, with a zero stamp if stamps are
+     * enabled. The backing array grows at most once, and the elements are copied in bulk.
+     *
+     * @param source the elements, none of which can be null
+     * @param offset the index of the first element in the array
+     * @param count  the number of elements
+     * @return the number of elements that were added
+     */
+    int offerAll(@Nonnull Object[] source, int offset, int count) {
+        int addedCount = Math.min(count, capacity - size);
+        if(addedCount <= 0) {
+            return 0;
+        }
+        if(size + addedCount > elements.length) {
+            long newLength = Math.max((long) elements.length * 2L, (long) size + addedCount);
+            resize((int) Math.min(Math.min(newLength, (long) capacity), MAX_ARRAY_LENGTH));
+        }
+        int tail = head + size;
+        if(tail >= elements.length) {
+            tail -= elements.length;
+        }
+        int firstPart = Math.min(addedCount, elements.length - tail);
+        System.arraycopy(source, offset, elements, tail, firstPart);
+        System.arraycopy(source, offset + firstPart, elements, 0, addedCount - firstPart);
+        if(stamps != null) {
+            Arrays.fill(stamps, tail, tail + firstPart, 0L);
+            Arrays.fill(stamps, 0, addedCount - firstPart, 0L);
+        }
+        size += addedCount;
+        return addedCount;
+    }
+
+    @Override
+    public T poll() {
+        if(size == 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked") T element = (T) elements[head];
+        elements[head] = null;
+        head++;
+        if(head == elements.length) {
+            head = 0;
+        }
+        size--;
+        headSequence++;
+        if(elements.length > retainedLength && size < elements.length / 4) {
+            shrink();
+        }
+        return element;
+    }
+
+    @Override
+    public T peek() {
+        if(size == 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked") T element = (T) elements[head];
+        return element;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        while(size > 0) {
+            poll();
+        }
+        head = 0;
+    }
+
+    @Nonnull
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public T next() {
+                if(index >= size) {
+                    throw new NoSuchElementException();
+                }
+                int position = head + index;
+                if(position >= elements.length) {
+                    position -= elements.length;
+                }
+                index++;
+                @SuppressWarnings("unchecked") T element = (T) elements[position];
+                return element;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Elements can only be removed from the head");
+            }
+        };
+    }
+
+    private void grow() {
+        int newLength = (int) Math.min(Math.min((long) elements.length * 2L, (long) capacity), MAX_ARRAY_LENGTH);
+        if(newLength <= elements.length) {
+            throw new OutOfMemoryError("The buffer cannot hold more than [" + elements.length + "] elements");
+        }
+        resize(newLength);
+    }
+
+    private void shrink() {
+        resize(Math.max(elements.length / 2, retainedLength));
+    }
+
+    private void resize(int newLength) {
+        Object[] newElements = new Object[newLength];
+        int firstPart = Math.min(size, elements.length - head);
+        System.arraycopy(elements, head, newElements, 0, firstPart);
+        System.arraycopy(elements, 0, newElements, firstPart, size - firstPart);
+        if(stamps != null) {
+            long[] newStamps = new long[newLength];
+            System.arraycopy(stamps, head, newStamps, 0, firstPart);
+            System.arraycopy(stamps, 0, newStamps, firstPart, size - firstPart);
+            stamps = newStamps;
+        }
+        elements = newElements;
+        head = 0;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A receiver that dispatches each command to the handler registered for its class.
+ *
+ * A command is handled by the handler of its own class, or else of its nearest superclass, or else of one of its
+ * interfaces. The handler of each command class is resolved only once, and then looked up directly, so dispatching does
+ * not depend on the number of handlers. The resolved handlers are cached by weak reference to the command class, so the
+ * cache does not keep command classes from being unloaded.
+ *
+ * Commands without a handler are passed to the fallback receiver, if there is one. Otherwise, with
+ * {@link Builder#keepUnhandledEnqueued()}, they are not accepted, so they stay in the command queue for a later
+ * receiver.
+ *
+ * The routing receiver is thread-safe: with {@link CommandQueue.Builder#deliverOn(java.util.concurrent.Executor)},
+ * the command queue asks it what it accepts on the owner thread, while it receives the commands on the delivery thread.
+ *
+ * @param <T> the type of the event
+ */
+public final class RoutingReceiver<T>
+        implements CommandQueue.SelectiveReceiver<T> {
+    /**
+     * Handles the commands of a given class.
+     *
+     * @param <E> the type of the command
+     */
+    public interface Handler<E> {
+        void handle(@Nonnull E command);
+    }
+
+    private static final Handler<Object> NO_HANDLER = new Handler<Object>() {
+        @Override
+        public void handle(@Nonnull Object command) {
+        }
+    };
+
+    public static class Builder<T> {
+        private final HashMap<Class<?>, Handler<?>> handlers = new HashMap<Class<?>, Handler<?>>();
+
+        private CommandQueue.Receiver<T> fallback = null;
+
+        private boolean keepUnhandledEnqueued = false;
+
+        /**
+         * Registers the handler of the commands of the given class, and of its subclasses.
+         *
+         * @param commandClass the class of the commands
+         * @param handler      the handler
+         * @throws IllegalArgumentException if a handler is already registered for the class
+         */
+        public <E extends T> Builder<T> on(@Nonnull Class<E> commandClass, @Nonnull Handler<? super E> handler) {
+            //noinspection ConstantConditions
+            if(commandClass == null) {
+                throw new IllegalArgumentException("Command class cannot be null");
+            }
+            //noinspection ConstantConditions
+            if(handler == null) {
+                throw new IllegalArgumentException("Handler cannot be null");
+            }
+            if(handlers.containsKey(commandClass)) {
+                throw new IllegalArgumentException("A handler is already registered for [" + commandClass + "]");
+            }
+            handlers.put(commandClass, handler);
+            return this;
+        }
+
+        /**
+         * Sets the receiver of the commands that have no handler.
+         *
+         * @param fallback the fallback receiver
+         */
+        public Builder<T> fallback(@Nonnull CommandQueue.Receiver<T> fallback) {
+            //noinspection ConstantConditions
+            if(fallback == null) {
+                throw new IllegalArgumentException("Fallback cannot be null");
+            }
+            this.fallback = fallback;
+            return this;
+        }
+
+        /**
+         * Instructs the receiver not to accept the commands that have no handler, so that they stay enqueued in the
+         * command queue until a receiver that accepts them is set. Cannot be combined with a fallback.
+         */
+        public Builder<T> keepUnhandledEnqueued() {
+            this.keepUnhandledEnqueued = true;
+            return this;
+        }
+
+        public RoutingReceiver<T> build() {
+            if(keepUnhandledEnqueued && fallback != null) {
+                throw new IllegalStateException("keepUnhandledEnqueued() cannot be combined with a fallback");
+            }
+            return new RoutingReceiver<T>(new HashMap<Class<?>, Handler<?>>(handlers), fallback, keepUnhandledEnqueued);
+        }
+    }
+
+    private final HashMap<Class<?>, Handler<?>> handlers;
+
+    // resolved on any thread, see deliverOn(); the registered handlers are never modified after build()
+    // weak keys, so that resolving the class of a command does not keep it from being unloaded
+    private final Map<Class<?>, Handler<?>> resolvedHandlers =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, Handler<?>>());
+
+    @Nullable
+    private final CommandQueue.Receiver<T> fallback;
+
+    private final boolean keepUnhandledEnqueued;
+
+    private RoutingReceiver(HashMap<Class<?>, Handler<?>> handlers, @Nullable CommandQueue.Receiver<T> fallback,
+                            boolean keepUnhandledEnqueued) {
+        this.handlers = handlers;
+        this.fallback = fallback;
+        this.keepUnhandledEnqueued = keepUnhandledEnqueued;
+    }
+
+    /**
+     * Returns if the commands of the class are accepted: always, unless {@link Builder#keepUnhandledEnqueued()} is
+     * set, in which case only if they have a handler.
+     *
+     * @param commandClass the class of the command
+     * @return whether the commands of the class are accepted
+     */
+    @Override
+    public boolean accepts(@Nonnull Class<?> commandClass) {
+        return !keepUnhandledEnqueued || resolveHandler(commandClass) != NO_HANDLER;
+    }
+
+    /**
+     * Returns if the command has a handler.
+     *
+     * @param command the command
+     * @return whether the command has a handler
+     */
+    public boolean hasHandler(@Nonnull T command) {
+        return resolveHandler(command.getClass()) != NO_HANDLER;
+    }
+
+    /**
+     * Dispatches the command to its handler, or to the fallback receiver.
+     *
+     * @param command the command
+     * @throws IllegalStateException if the command has no handler, and there is no fallback receiver
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void receiveCommand(@Nonnull T command) {
+        Handler<?> handler = resolveHandler(command.getClass());
+        if(handler != NO_HANDLER) {
+            ((Handler<T>) handler).handle(command);
+        } else if(fallback != null) {
+            fallback.receiveCommand(command);
+        } else {
+            throw new IllegalStateException("There is no handler for [" + command.getClass() + "]");
+        }
+    }
+
+    @Nonnull
+    private Handler<?> resolveHandler(@Nonnull Class<?> commandClass) {
+        Handler<?> handler = resolvedHandlers.get(commandClass);
+        if(handler == null) {
+            handler = findHandler(commandClass);
+            resolvedHandlers.put(commandClass, handler);
+        }
+        return handler;
+    }
+
+    @Nonnull
+    private Handler<?> findHandler(@Nonnull Class<?> commandClass) {
+        for(Class<?> type = commandClass; type != null; type = type.getSuperclass()) {
+            Handler<?> handler = handlers.get(type);
+            if(handler != null) {
+                return handler;
+            }
+        }
+        ArrayDeque<Class<?>> interfaces = new ArrayDeque<Class<?>>(); // nearest interfaces first
+        for(Class<?> type = commandClass; type != null; type = type.getSuperclass()) {
+            for(Class<?> implementedInterface : type.getInterfaces()) {
+                interfaces.add(implementedInterface);
+            }
+        }
+        while(!interfaces.isEmpty()) {
+            Class<?> implementedInterface = interfaces.poll();
+            Handler<?> handler = handlers.get(implementedInterface);
+            if(handler != null) {
+                return handler;
+            }
+            for(Class<?> superInterface : implementedInterface.getInterfaces()) {
+                interfaces.add(superInterface);
+            }
+        }
+        return NO_HANDLER;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A FIFO queue of events in temporary files, used as the overflow tier of a command queue that spills to disk.
+ *
+ * Events are written to the current segment file, and read back in order from the oldest segment. A segment is closed
+ * once it is large enough (or once the reader catches up with it), and deleted once it is read, so only the unread
+ * events take up disk space, and reading back never loads more than one event into memory at once.
+ *
+ * Spilled events are not durable: the remaining segments are deleted when the spill buffer is closed. They are not
+ * deleted on exit, as the JVM would keep the path of every segment until then.
+ *
+ * Not thread-safe: it is only accessed on the thread that owns the command queue.
+ *
+ * @param <T> the type of the event
+ */
+final class SpillBuffer<T> {
+    static final long MAX_SEGMENT_BYTES = 16L * 1024L * 1024L;
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final class Segment {
+        final File file;
+        int count;
+
+        Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    @Nullable
+    private final File directory;
+    private final CommandQueue.Codec<T> codec;
+
+    private final ArrayDeque<Segment> closedSegments = new ArrayDeque<Segment>();
+
+    private Segment writeSegment;
+    private DataOutputStream writer;
+    private long writeSegmentBytes;
+
+    private Segment readSegment;
+    private DataInputStream reader;
+
+    private long size;
+    private long lastReadStamp;
+
+    /**
+     * Creates a spill buffer.
+     *
+     * @param directory the directory of the segment files, or null for the default temporary directory
+     * @param codec     the codec of the events
+     */
+    SpillBuffer(@Nullable File directory, @Nonnull CommandQueue.Codec<T> codec) {
+        this.directory = directory;
+        this.codec = codec;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Adds the event to the end of the queue.
+     *
+     * @param event the event
+     * @param stamp the stamp of the event, returned by {@link #getLastReadStamp()} when it is read back
+     */
+    void write(@Nonnull T event, long stamp) {
+        try {
+            if(writer == null) {
+                File file = File.createTempFile("command-queue", ".spill", directory);
+                writeSegment = new Segment(file);
+                writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), STREAM_BUFFER_SIZE));
+                writeSegmentBytes = 0;
+            }
+            byte[] bytes = codec.encode(event);
+            writer.writeLong(stamp);
+            writer.writeInt(bytes.length);
+            writer.write(bytes);
+            writeSegment.count++;
+            writeSegmentBytes += 12 + bytes.length;
+            size++;
+            if(writeSegmentBytes >= MAX_SEGMENT_BYTES) {
+                closeWriteSegment();
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException("Could not spill the event to disk", e);
+        }
+    }
+
+    /**
+     * Removes the event at the head of the queue. Must only be called if the queue is not empty.
+     *
+     * @return the event
+     */
+    @Nonnull
+    T read() {
+        if(size == 0) {
+            throw new IllegalStateException("The spill buffer is empty");
+        }
+        try {
+            if(reader == null) {
+                if(closedSegments.isEmpty()) {
+                    closeWriteSegment(); // the reader caught up with the writer
+                }
+                readSegment = closedSegments.poll();
+                reader = new DataInputStream(new BufferedInputStream(new FileInputStream(readSegment.file),
+                                                                     STREAM_BUFFER_SIZE));
+            }
+            lastReadStamp = reader.readLong();
+            byte[] bytes = new byte[reader.readInt()];
+            reader.readFully(bytes);
+            size--;
+            if(--readSegment.count == 0) {
+                reader.close();
+                reader = null;
+                deleteSegment(readSegment);
+                readSegment = null;
+            }
+            return codec.decode(bytes);
+        } catch(IOException e) {
+            throw new IllegalStateException("Could not read the spilled event from disk", e);
+        }
+    }
+
+    /**
+     * Returns the stamp of the event that was read last.
+     *
+     * @return the stamp
+     */
+    long getLastReadStamp() {
+        return lastReadStamp;
+    }
+
+    /**
+     * Discards the unread events, and deletes their segments. The spill buffer must not be used after it is closed.
+     */
+    void close() {
+        if(reader != null) {
+            closeQuietly(reader);
+            reader = null;
+        }
+        if(readSegment != null) {
+            deleteSegment(readSegment);
+            readSegment = null;
+        }
+        Segment segment;
+        while((segment = closedSegments.poll()) != null) {
+            deleteSegment(segment);
+        }
+        if(writer != null) {
+            closeQuietly(writer);
+            writer = null;
+            deleteSegment(writeSegment);
+            writeSegment = null;
+        }
+        size = 0;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch(IOException e) {
+            // the segment is deleted anyway
+        }
+    }
+
+    private void closeWriteSegment()
+            throws IOException {
+        writer.close();
+        writer = null;
+        closedSegments.add(writeSegment);
+        writeSegment = null;
+    }
+
+    private static void deleteSegment(Segment segment) {
+        //noinspection ResultOfMethodCallIgnored
+        segment.file.delete();
+    }
+}
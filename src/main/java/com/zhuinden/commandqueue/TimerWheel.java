@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A hierarchical timer wheel that holds the timers of a command queue.
+ *
+ * Time is divided into ticks. There are 6 levels of 64 slots: a slot of level 0 holds the timers of a single tick, and a
+ * slot of level n spans 64 slots of level n - 1. Adding and cancelling a timer is constant time. When the wheel reaches
+ * the start of a higher level slot, its timers are cascaded into the lower levels, and the timers of the level 0 slot of
+ * the current tick are due.
+ *
+ * Advancing the wheel jumps straight to the next tick that has work, so idle time costs nothing.
+ *
+ * Not thread-safe: it is only accessed on the thread that owns the command queue.
+ *
+ * @param <T> the type of the event
+ */
+final class TimerWheel<T> {
+    private static final int BITS_PER_LEVEL = 6;
+    private static final int SLOT_COUNT = 1 << BITS_PER_LEVEL;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    static final int LEVEL_COUNT = 6;
+
+    /**
+     * A timer in the wheel.
+     *
+     * @param <T> the type of the event
+     */
+    static final class Timer<T> {
+        @Nullable
+        final T event;
+        @Nullable
+        final Object key;
+        final long deadlineTick;
+        final long id;
+
+        Timer<T> previous;
+        Timer<T> next;
+        int level = -1; // -1 if the timer is not in the wheel
+        int slot;
+
+        Timer(@Nullable T event, @Nullable Object key, long deadlineTick, long id) {
+            this.event = event;
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+            this.id = id;
+        }
+
+        boolean isScheduled() {
+            return level != -1;
+        }
+    }
+
+    private static final Comparator<Timer<?>> DEADLINE_ORDER = new Comparator<Timer<?>>() {
+        @Override
+        public int compare(Timer<?> first, Timer<?> second) {
+            if(first.deadlineTick != second.deadlineTick) {
+                return first.deadlineTick < second.deadlineTick ? -1 : 1;
+            }
+            return first.id < second.id ? -1 : (first.id == second.id ? 0 : 1);
+        }
+    };
+
+    private final long tickNanos;
+    private final long startNanos;
+
+    private final Timer<T>[][] slots;
+    private final int[] levelSizes = new int[LEVEL_COUNT];
+
+    private long currentTick;
+    private int size;
+    private long nextId;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tickNanos, long startNanos) {
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+        this.slots = (Timer<T>[][]) new Timer[LEVEL_COUNT][SLOT_COUNT];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds a timer that is due at the given time, but no earlier than the tick after the current tick.
+     *
+     * @param event         the event of the timer
+     * @param key           the key of the timer
+     * @param deadlineNanos the time when the timer is due
+     * @return the timer
+     */
+    @Nonnull
+    Timer<T> schedule(@Nullable T event, @Nullable Object key, long deadlineNanos) {
+        long deadlineTick = Math.max(currentTick + 1, ceilDiv(deadlineNanos - startNanos, tickNanos));
+        Timer<T> timer = new Timer<T>(event, key, deadlineTick, nextId++);
+        insert(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Removes the timer from the wheel, if it is still scheduled.
+     *
+     * @param timer the timer
+     */
+    void cancel(@Nonnull Timer<T> timer) {
+        if(timer.isScheduled()) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time, and collects the timers that are due, in deadline order.
+     *
+     * @param nowNanos the current time
+     * @param due      the list that receives the due timers
+     */
+    void advance(long nowNanos, @Nonnull List<Timer<T>> due) {
+        long nowTick = floorDiv(nowNanos - startNanos, tickNanos);
+        int firstDue = due.size();
+        while(currentTick < nowTick) {
+            currentTick = Math.min(nowTick, nextWorkTick());
+            processTick(due);
+        }
+        size -= due.size() - firstDue;
+        if(due.size() - firstDue > 1) {
+            Collections.sort(due.subList(firstDue, due.size()), DEADLINE_ORDER);
+        }
+    }
+
+    /**
+     * Returns the time of the next tick that has work: either due timers, or timers to cascade.
+     *
+     * @return the time of the next tick, or {@link Long#MAX_VALUE} if the wheel is empty
+     */
+    long nextWorkNanos() {
+        long tick = nextWorkTick();
+        return tick == Long.MAX_VALUE ? Long.MAX_VALUE : startNanos + tick * tickNanos;
+    }
+
+    private long nextWorkTick() {
+        long nextTick = Long.MAX_VALUE;
+        for(int level = 0; level < LEVEL_COUNT; level++) {
+            if(levelSizes[level] == 0) {
+                continue;
+            }
+            int shift = BITS_PER_LEVEL * level;
+            long base = currentTick >> shift;
+            for(int i = 1; i <= SLOT_COUNT; i++) {
+                if(slots[level][(int) ((base + i) & SLOT_MASK)] != null) {
+                    nextTick = Math.min(nextTick, (base + i) << shift);
+                    break;
+                }
+            }
+        }
+        return nextTick;
+    }
+
+    private void processTick(@Nonnull List<Timer<T>> due) {
+        for(int level = LEVEL_COUNT - 1; level > 0; level--) { // the highest levels first, so timers flow downwards
+            int shift = BITS_PER_LEVEL * level;
+            if((currentTick & ((1L << shift) - 1)) == 0) {
+                Timer<T> timer = detachSlot(level, (int) ((currentTick >> shift) & SLOT_MASK));
+                while(timer != null) {
+                    Timer<T> next = timer.next;
+                    if(timer.deadlineTick <= currentTick) {
+                        due.add(timer);
+                    } else {
+                        insert(timer);
+                    }
+                    timer = next;
+                }
+            }
+        }
+        Timer<T> timer = detachSlot(0, (int) (currentTick & SLOT_MASK));
+        while(timer != null) {
+            Timer<T> next = timer.next;
+            due.add(timer);
+            timer = next;
+        }
+    }
+
+    private void insert(@Nonnull Timer<T> timer) {
+        long delta = timer.deadlineTick - currentTick;
+        int level = 0;
+        while(level < LEVEL_COUNT - 1 && delta >= (1L << (BITS_PER_LEVEL * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((timer.deadlineTick >> (BITS_PER_LEVEL * level)) & SLOT_MASK);
+        Timer<T> head = slots[level][slot];
+        timer.level = level;
+        timer.slot = slot;
+        timer.previous = null;
+        timer.next = head;
+        if(head != null) {
+            head.previous = timer;
+        }
+        slots[level][slot] = timer;
+        levelSizes[level]++;
+    }
+
+    private void unlink(@Nonnull Timer<T> timer) {
+        if(timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[timer.level][timer.slot] = timer.next;
+        }
+        if(timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        levelSizes[timer.level]--;
+        timer.level = -1;
+        timer.previous = null;
+        timer.next = null;
+    }
+
+    /**
+     * Removes every timer of the slot, and returns them as a list linked by {@link Timer#next}.
+     */
+    @Nullable
+    private Timer<T> detachSlot(int level, int slot) {
+        Timer<T> head = slots[level][slot];
+        slots[level][slot] = null;
+        for(Timer<T> timer = head; timer != null; timer = timer.next) {
+            timer.level = -1;
+            timer.previous = null;
+            levelSizes[level]--;
+        }
+        return head;
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return -floorDiv(-dividend, divisor);
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor; // Math.floorDiv() is Java 8
+        if((dividend % divisor != 0) && ((dividend < 0) != (divisor < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+}
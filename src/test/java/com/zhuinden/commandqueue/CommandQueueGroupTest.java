@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommandQueueGroupTest {
+    private static class RecordingReceiver
+            implements CommandQueue.Receiver<String> {
+        final List<String> received;
+        final String name;
+
+        RecordingReceiver(List<String> received, String name) {
+            this.received = received;
+            this.name = name;
+        }
+
+        @Override
+        public void receiveCommand(@Nonnull String command) {
+            received.add(name + ":" + command);
+        }
+    }
+
+    @Test
+    public void eventsAreEnqueuedPerKeyUntilTheKeyHasReceiver() {
+        CommandQueueGroup<Integer, String> group = new CommandQueueGroup<>();
+        List<String> received = new ArrayList<>();
+
+        group.sendEvent(1, "a");
+        group.sendEvent(2, "b");
+        group.sendEvent(1, "c");
+
+        assertThat(group.getQueuedEventCount()).isEqualTo(3);
+        assertThat(group.getQueuedEventCount(1)).isEqualTo(2);
+
+        group.setReceiver(1, new RecordingReceiver(received, "1"));
+
+        assertThat(received).containsExactly("1:a", "1:c");
+        assertThat(group.getQueuedEventCount()).isEqualTo(1);
+
+        group.sendEvent(1, "d");
+        group.setReceiver(2, new RecordingReceiver(received, "2"));
+
+        assertThat(received).containsExactly("1:a", "1:c", "1:d", "2:b");
+        assertThat(group.getQueuedEventCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void pausedKeysEnqueueEvents() {
+        CommandQueueGroup<Integer, String> group = new CommandQueueGroup<>();
+        List<String> received = new ArrayList<>();
+
+        group.setReceiver(1, new RecordingReceiver(received, "1"));
+        group.setReceiver(2, new RecordingReceiver(received, "2"));
+        group.setPaused(1, true);
+
+        group.sendEvent(1, "a");
+        group.sendEvent(2, "b");
+
+        assertThat(received).containsExactly("2:b");
+        assertThat(group.isPaused(1)).isTrue();
+
+        group.setPaused(1, false);
+
+        assertThat(received).containsExactly("2:b", "1:a");
+    }
+
+    @Test
+    public void idleKeysAreNotStored() {
+        CommandQueueGroup<Integer, String> group = new CommandQueueGroup<>();
+        List<String> received = new ArrayList<>();
+
+        for(int i = 0; i < 1000; i++) {
+            group.sendEvent(i, "a");
+        }
+        assertThat(group.getKeyCount()).isEqualTo(1000);
+
+        for(int i = 0; i < 1000; i++) {
+            group.setReceiver(i, new RecordingReceiver(received, "r"));
+            group.detachReceiver(i);
+        }
+
+        assertThat(received).hasSize(1000);
+        assertThat(group.getKeyCount()).isEqualTo(0);
+        assertThat(group.hasReceiver(0)).isFalse();
+    }
+
+    @Test
+    public void eventsSentByReceiverAreEmittedAfterItReturns() {
+        final CommandQueueGroup<Integer, String> group = new CommandQueueGroup<>();
+        final List<String> received = new ArrayList<>();
+
+        group.setReceiver(2, new RecordingReceiver(received, "2"));
+        group.setReceiver(1, new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add("1:" + command + " start");
+                if(command.equals("a")) {
+                    group.sendEvent(2, "from 1");
+                    group.sendEvent(1, "b");
+                }
+                received.add("1:" + command + " end");
+            }
+        });
+
+        group.sendEvent(1, "a");
+
+        assertThat(received).containsExactly("1:a start", "1:a end", "1:b start", "1:b end", "2:from 1");
+    }
+
+    @Test
+    public void emitsChainAcrossManyKeysInConstantStack() {
+        final CommandQueueGroup<Integer, String> group = new CommandQueueGroup<>();
+        final int[] receivedCount = new int[]{0};
+        final int keyCount = 100000;
+
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                int key = receivedCount[0]++;
+                if(key + 1 < keyCount) {
+                    group.sendEvent(key + 1, command);
+                }
+            }
+        };
+        for(int i = 0; i < keyCount; i++) {
+            group.setReceiver(i, receiver);
+        }
+        group.sendEvent(0, "a");
+
+        assertThat(receivedCount[0]).isEqualTo(keyCount);
+        assertThat(group.getQueuedEventCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void storageShrinksAfterBacklogIsEmitted() {
+        CommandQueueGroup<Integer, String> group = new CommandQueueGroup<>();
+        List<String> received = new ArrayList<>();
+
+        for(int i = 0; i < 100000; i++) {
+            group.sendEvent(i % 8 == 0 ? 1 : 0, "" + i); // interleaved, so the remaining events are scattered
+        }
+        int peakCapacity = group.capacity();
+        group.setReceiver(0, new RecordingReceiver(received, "0"));
+
+        assertThat(group.capacity()).isLessThan(peakCapacity);
+        assertThat(group.getQueuedEventCount(1)).isEqualTo(12500);
+
+        received.clear();
+        group.setReceiver(1, new RecordingReceiver(received, "1"));
+
+        assertThat(received).hasSize(12500);
+        for(int i = 0; i < 12500; i++) {
+            assertThat(received.get(i)).isEqualTo("1:" + (i * 8));
+        }
+        assertThat(group.capacity()).isEqualTo(RingBuffer.MAX_PREALLOCATED_CAPACITY);
+
+        group.sendEvent(2, "a");
+        group.setReceiver(2, new RecordingReceiver(received, "2"));
+        assertThat(received).endsWith("2:a");
+    }
+
+    @Test
+    public void nullKeyIsNotAllowed() {
+        try {
+            new CommandQueueGroup<Integer, String>().sendEvent(null, "a");
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommandQueuePublisherTest {
+    private static class ManualExecutor
+            implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while(!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingSubscriber
+            implements Subscriber<String> {
+        final List<String> received = new ArrayList<>();
+        Subscription subscription;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(String event) {
+            received.add(event);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    @Test
+    public void subscriberReceivesOnlyRequestedEvents() {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, new ManualExecutor());
+
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("b");
+        commandQueue.sendEvent("c");
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        assertThat(subscriber.received).isEmpty();
+
+        subscriber.subscription.request(2);
+
+        assertThat(subscriber.received).containsExactly("a", "b");
+
+        commandQueue.sendEvent("d");
+        subscriber.subscription.request(1);
+
+        assertThat(subscriber.received).containsExactly("a", "b", "c");
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        commandQueue.sendEvent("e");
+
+        assertThat(subscriber.received).containsExactly("a", "b", "c", "d", "e");
+    }
+
+    @Test
+    public void subscriberCanRequestInOnNext() {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, new ManualExecutor());
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(String event) {
+                super.onNext(event);
+                subscription.request(1);
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        for(int i = 0; i < 10000; i++) {
+            commandQueue.sendEvent("event " + i);
+        }
+
+        assertThat(subscriber.received).hasSize(10000);
+    }
+
+    @Test
+    public void requestOnOtherThreadIsAppliedOnOwnerExecutor()
+            throws InterruptedException {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        ManualExecutor ownerExecutor = new ManualExecutor();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, ownerExecutor);
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("b");
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                subscriber.subscription.request(1);
+                subscriber.subscription.request(1);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(subscriber.received).isEmpty();
+        assertThat(ownerExecutor.tasks).hasSize(1);
+
+        ownerExecutor.runAll();
+
+        assertThat(subscriber.received).containsExactly("a", "b");
+    }
+
+    @Test
+    public void requestAfterHandOffIsAppliedOnTheNewOwner()
+            throws InterruptedException {
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().threadConfinement(
+                CommandQueue.ThreadConfinement.HANDOFF).build();
+        final ManualExecutor ownerExecutor = new ManualExecutor();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, ownerExecutor);
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        commandQueue.sendEvent("a");
+
+        Thread newOwner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ownerExecutor.runAll();
+            }
+        });
+        commandQueue.handOffTo(newOwner);
+        subscriber.subscription.request(1); // the previous owner is now another thread
+
+        assertThat(subscriber.received).isEmpty();
+        assertThat(ownerExecutor.tasks).hasSize(1);
+
+        newOwner.start();
+        newOwner.join();
+
+        assertThat(subscriber.received).containsExactly("a");
+    }
+
+    @Test
+    public void cancelDetachesTheSubscriber() {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, new ManualExecutor());
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.cancel();
+
+        assertThat(commandQueue.hasReceiver()).isFalse();
+
+        commandQueue.sendEvent("a");
+
+        RecordingSubscriber nextSubscriber = new RecordingSubscriber();
+        publisher.subscribe(nextSubscriber);
+        nextSubscriber.subscription.request(1);
+
+        assertThat(subscriber.received).isEmpty();
+        assertThat(nextSubscriber.received).containsExactly("a");
+    }
+
+    @Test
+    public void eventsStayEnqueuedWhileCancelOnOtherThreadIsPending()
+            throws InterruptedException {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        ManualExecutor ownerExecutor = new ManualExecutor();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, ownerExecutor);
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+        commandQueue.sendEvent("a");
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                subscriber.subscription.cancel();
+            }
+        });
+        thread.start();
+        thread.join();
+
+        commandQueue.sendEvent("b"); // the detach task has not run yet
+        commandQueue.sendEvent("c");
+
+        assertThat(subscriber.received).containsExactly("a");
+        assertThat(ownerExecutor.tasks).hasSize(1);
+
+        ownerExecutor.runAll();
+
+        assertThat(commandQueue.hasReceiver()).isFalse();
+
+        RecordingSubscriber nextSubscriber = new RecordingSubscriber();
+        publisher.subscribe(nextSubscriber);
+        nextSubscriber.subscription.request(2);
+
+        assertThat(nextSubscriber.received).containsExactly("b", "c");
+    }
+
+    @Test
+    public void onlySingleSubscriberIsAllowed() {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, new ManualExecutor());
+
+        publisher.subscribe(new RecordingSubscriber());
+        RecordingSubscriber secondSubscriber = new RecordingSubscriber();
+        publisher.subscribe(secondSubscriber);
+
+        assertThat(secondSubscriber.subscription).isNotNull();
+        assertThat(secondSubscriber.error).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void nonPositiveRequestSignalsError() {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, new ManualExecutor());
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+        assertThat(commandQueue.hasReceiver()).isFalse();
+    }
+
+    @Test
+    public void nonPositiveRequestOnOtherThreadSignalsErrorAfterResubscribe()
+            throws InterruptedException {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        ManualExecutor ownerExecutor = new ManualExecutor();
+        CommandQueuePublisher<String> publisher = new CommandQueuePublisher<>(commandQueue, ownerExecutor);
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                subscriber.subscription.request(-1);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        RecordingSubscriber nextSubscriber = new RecordingSubscriber();
+        publisher.subscribe(nextSubscriber); // before the cancel task runs
+        ownerExecutor.runAll();
+
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+        assertThat(nextSubscriber.error).isNull();
+
+        commandQueue.sendEvent("a");
+        nextSubscriber.subscription.request(1);
+
+        assertThat(nextSubscriber.received).containsExactly("a");
+    }
+
+    @Test
+    public void asyncDeliveryCommandQueueIsRejected() {
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().deliverOn(new ManualExecutor()).build();
+
+        try {
+            new CommandQueuePublisher<>(commandQueue, new ManualExecutor());
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+}
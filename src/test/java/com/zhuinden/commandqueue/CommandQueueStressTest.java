@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Stress tests for receivers that call back into the command queue while they receive commands. They run on a thread
+ * with a small stack, so a drain whose stack depth grows with the number of receiver swaps overflows it.
+ */
+public class CommandQueueStressTest {
+    private static final long SMALL_STACK_SIZE = 256L * 1024L;
+
+    private static final int CHAIN_LENGTH = 100000;
+
+    private static void runWithSmallStack(final Runnable runnable)
+            throws Throwable {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch(Throwable e) {
+                    failure.set(e);
+                }
+            }
+        }, "stress", SMALL_STACK_SIZE);
+        thread.start();
+        thread.join();
+        if(failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Receives a single command, then replaces itself with the next receiver of the chain.
+     */
+    private static class SwappingReceiver
+            implements CommandQueue.Receiver<Integer> {
+        final CommandQueue<Integer> commandQueue;
+        final int[] received;
+        final int index;
+
+        SwappingReceiver(CommandQueue<Integer> commandQueue, int[] received, int index) {
+            this.commandQueue = commandQueue;
+            this.received = received;
+            this.index = index;
+        }
+
+        @Override
+        public void receiveCommand(@Nonnull Integer command) {
+            received[index] = command;
+            if(index + 1 < received.length) {
+                commandQueue.setReceiver(new SwappingReceiver(commandQueue, received, index + 1));
+            }
+        }
+    }
+
+    /**
+     * Receives a command, sends the next one, then replaces itself with a new receiver. Optionally pauses the queue
+     * while it sends, and resumes it after.
+     */
+    private static class SendingReceiver
+            implements CommandQueue.Receiver<Integer> {
+        final CommandQueue<Integer> commandQueue;
+        final int[] received;
+        final boolean pauses;
+
+        SendingReceiver(CommandQueue<Integer> commandQueue, int[] received, boolean pauses) {
+            this.commandQueue = commandQueue;
+            this.received = received;
+            this.pauses = pauses;
+        }
+
+        @Override
+        public void receiveCommand(@Nonnull Integer command) {
+            received[command - 1] = command;
+            if(command == received.length) {
+                return;
+            }
+            if(pauses) {
+                commandQueue.setPaused(true);
+            }
+            commandQueue.sendEvent(command + 1);
+            commandQueue.setReceiver(new SendingReceiver(commandQueue, received, pauses));
+            if(pauses) {
+                commandQueue.setPaused(false);
+            }
+        }
+    }
+
+    private static void assertReceivedInOrder(int[] received) {
+        for(int i = 0; i < received.length; i++) {
+            assertThat(received[i]).isEqualTo(i + 1);
+        }
+    }
+
+    @Test
+    public void receiverSwapChainRunsInConstantStack()
+            throws Throwable {
+        runWithSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                CommandQueue<Integer> commandQueue = new CommandQueue<>();
+                for(int i = 1; i <= CHAIN_LENGTH; i++) {
+                    commandQueue.sendEvent(i);
+                }
+                int[] received = new int[CHAIN_LENGTH];
+                commandQueue.setReceiver(new SwappingReceiver(commandQueue, received, 0));
+
+                assertReceivedInOrder(received);
+            }
+        });
+    }
+
+    @Test
+    public void sendAndSwapInReceiveCommandRunsInConstantStack()
+            throws Throwable {
+        runWithSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                CommandQueue<Integer> commandQueue = new CommandQueue<>();
+                int[] received = new int[CHAIN_LENGTH];
+                commandQueue.setReceiver(new SendingReceiver(commandQueue, received, false));
+                commandQueue.sendEvent(1);
+
+                assertReceivedInOrder(received);
+            }
+        });
+    }
+
+    @Test
+    public void pauseAndResumeInReceiveCommandRunsInConstantStack()
+            throws Throwable {
+        runWithSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                CommandQueue<Integer> commandQueue = new CommandQueue<>();
+                int[] received = new int[CHAIN_LENGTH];
+                commandQueue.setReceiver(new SendingReceiver(commandQueue, received, true));
+                commandQueue.sendEvent(1);
+
+                assertReceivedInOrder(received);
+            }
+        });
+    }
+
+    @Test
+    public void swapsBetweenBatchAndSingleReceiversRunInConstantStack()
+            throws Throwable {
+        runWithSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                final CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().maxBatchSize(2).build();
+                for(int i = 1; i <= CHAIN_LENGTH; i++) {
+                    commandQueue.sendEvent(i);
+                }
+                final int[] received = new int[CHAIN_LENGTH];
+                final int[] receivedCount = new int[]{0};
+                final CommandQueue.Receiver<Integer> singleReceiver = new CommandQueue.Receiver<Integer>() {
+                    @Override
+                    public void receiveCommand(@Nonnull Integer command) {
+                        received[receivedCount[0]++] = command;
+                        final CommandQueue.Receiver<Integer> self = this;
+                        commandQueue.setReceiver(new CommandQueue.BatchReceiver<Integer>() {
+                            @Override
+                            public void receiveCommands(@Nonnull List<Integer> commands) {
+                                for(Integer command : commands) {
+                                    received[receivedCount[0]++] = command;
+                                }
+                                commandQueue.setReceiver(self);
+                            }
+
+                            @Override
+                            public void receiveCommand(@Nonnull Integer command) {
+                                throw new AssertionError("Enqueued commands are received in batches");
+                            }
+                        });
+                    }
+                };
+                commandQueue.setReceiver(singleReceiver);
+
+                assertThat(receivedCount[0]).isEqualTo(CHAIN_LENGTH);
+                assertReceivedInOrder(received);
+            }
+        });
+    }
+
+    @Test(timeout = 10000L)
+    public void longSwapChainKeepsThroughput()
+            throws Throwable {
+        runWithSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                CommandQueue<Integer> commandQueue = new CommandQueue<>();
+                int[] received = new int[CHAIN_LENGTH * 10];
+                commandQueue.setReceiver(new SendingReceiver(commandQueue, received, false));
+                commandQueue.sendEvent(1);
+
+                assertReceivedInOrder(received);
+            }
+        });
+    }
+}
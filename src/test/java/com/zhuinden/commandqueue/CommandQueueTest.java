@@ -16,11 +16,21 @@
 package com.zhuinden.commandqueue;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -29,6 +39,9 @@ import javax.annotation.Nonnull;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CommandQueueTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     public abstract static class Events {
         public static class First extends Events {
         }
@@ -445,61 +458,1956 @@ public class CommandQueueTest {
     }
 
     @Test
-    public void commandQueueCanOnlyBeAccessedOnSameThread()
-            throws InterruptedException {
-        final CommandQueue<Object> commandQueue = new CommandQueue<>();
+    public void limitAbovePreallocatedCapacityKeepsOrderAcrossWrapAround() {
+        int limit = RingBuffer.MAX_PREALLOCATED_CAPACITY * 2 + 1;
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().limit(limit).build();
 
-        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final List<Integer> received = new ArrayList<>();
+        CommandQueue.Receiver<Integer> receiver = new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        };
 
-        final Object event = new Object();
+        commandQueue.sendEvent(-1);
+        commandQueue.sendEvent(-2);
+        commandQueue.setReceiver(receiver);
+        commandQueue.detachReceiver();
 
-        final CommandQueue.Receiver<Object> receiver = new CommandQueue.Receiver<Object>() {
+        for(int i = 0; i < limit + 10; i++) {
+            commandQueue.sendEvent(i);
+        }
+        received.clear();
+        commandQueue.setReceiver(receiver);
+
+        assertThat(received).hasSize(limit);
+        for(int i = 0; i < limit; i++) {
+            assertThat(received.get(i)).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void batchReceiverReceivesBacklogInBatches() {
+        final List<List<Integer>> batches = new ArrayList<>();
+        final List<Integer> singles = new ArrayList<>();
+
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().maxBatchSize(3).build();
+
+        CommandQueue.BatchReceiver<Integer> receiver = new CommandQueue.BatchReceiver<Integer>() {
             @Override
-            public void receiveCommand(@Nonnull Object command) {
+            public void receiveCommands(@Nonnull List<Integer> commands) {
+                batches.add(new ArrayList<>(commands));
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                singles.add(command);
             }
         };
 
-        final AtomicReference<Throwable> sendEventExceptionRef = new AtomicReference<>();
-        final AtomicReference<Throwable> setReceiverExceptionRef = new AtomicReference<>();
-        final AtomicReference<Throwable> setPausedExceptionRef = new AtomicReference<>();
-        final AtomicReference<Throwable> detachReceiverExceptionRef = new AtomicReference<>();
+        for(int i = 1; i <= 7; i++) {
+            commandQueue.sendEvent(i);
+        }
+        commandQueue.setReceiver(receiver);
 
-        new Thread(new Runnable() {
+        assertThat(batches).containsExactly(Arrays.asList(1, 2, 3), Arrays.asList(4, 5, 6), Arrays.asList(7));
+        assertThat(singles).isEmpty();
+
+        commandQueue.sendEvent(8);
+        assertThat(singles).containsExactly(8);
+
+        commandQueue.setPaused(true);
+        commandQueue.sendEvent(9);
+        commandQueue.sendEvent(10);
+        commandQueue.setPaused(false);
+
+        assertThat(batches).containsExactly(Arrays.asList(1, 2, 3),
+                                            Arrays.asList(4, 5, 6),
+                                            Arrays.asList(7),
+                                            Arrays.asList(9, 10));
+    }
+
+    @Test
+    public void batchReceiverPausingInsideBatchTakesEffectAfterBatch() {
+        final List<List<String>> batches = new ArrayList<>();
+
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().distinctOnly().maxBatchSize(2).build();
+
+        CommandQueue.BatchReceiver<String> receiver = new CommandQueue.BatchReceiver<String>() {
             @Override
-            public void run() {
-                try {
-                    commandQueue.sendEvent(event);
-                } catch(Throwable e) {
-                    sendEventExceptionRef.set(e);
-                }
+            public void receiveCommands(@Nonnull List<String> commands) {
+                batches.add(new ArrayList<>(commands));
+                commandQueue.setPaused(true);
+            }
 
-                try {
-                    commandQueue.setReceiver(receiver);
-                } catch(Throwable e) {
-                    setReceiverExceptionRef.set(e);
-                }
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                throw new IllegalStateException("This shouldn't be called");
+            }
+        };
 
-                try {
-                    commandQueue.setPaused(true);
-                } catch(Throwable e) {
-                    setPausedExceptionRef.set(e);
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("b");
+        commandQueue.sendEvent("c");
+        commandQueue.setReceiver(receiver);
+
+        assertThat(batches).containsExactly(Arrays.asList("a", "b"));
+
+        commandQueue.setPaused(false);
+
+        assertThat(batches).containsExactly(Arrays.asList("a", "b"), Arrays.asList("c"));
+    }
+
+    @Test
+    public void drainBudgetContinuesDrainingOnDrainExecutorInOrder() {
+        final List<Runnable> tasks = new ArrayList<>();
+        Executor drainExecutor = new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                tasks.add(command);
+            }
+        };
+
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().drainExecutor(drainExecutor)
+                .maxEventsPerDrain(2)
+                .build();
+
+        final List<Integer> received = new ArrayList<>();
+        CommandQueue.Receiver<Integer> receiver = new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        };
+
+        for(int i = 1; i <= 5; i++) {
+            commandQueue.sendEvent(i);
+        }
+        commandQueue.setReceiver(receiver);
+
+        assertThat(received).containsExactly(1, 2);
+        assertThat(tasks).hasSize(1);
+
+        commandQueue.sendEvent(6); // must not overtake the backlog
+
+        assertThat(received).containsExactly(1, 2);
+
+        tasks.remove(0).run();
+        assertThat(received).containsExactly(1, 2, 3, 4);
+
+        tasks.remove(0).run();
+        assertThat(received).containsExactly(1, 2, 3, 4, 5, 6);
+        assertThat(tasks).isEmpty();
+
+        commandQueue.sendEvent(7);
+        assertThat(received).containsExactly(1, 2, 3, 4, 5, 6, 7);
+    }
+
+    @Test
+    public void drainContinuationIsScheduledAgainAfterDrainExecutorThrows() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final boolean[] isRejecting = new boolean[]{true};
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().drainExecutor(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                if(isRejecting[0]) {
+                    throw new IllegalStateException("Rejected");
                 }
+                tasks.add(command);
+            }
+        }).maxEventsPerDrain(2).build();
 
-                try {
-                    commandQueue.detachReceiver();
-                } catch(Throwable e) {
-                    detachReceiverExceptionRef.set(e);
+        final List<Integer> received = new ArrayList<>();
+        CommandQueue.Receiver<Integer> receiver = new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        };
+
+        for(int i = 1; i <= 5; i++) {
+            commandQueue.sendEvent(i);
+        }
+        try {
+            commandQueue.setReceiver(receiver);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+        isRejecting[0] = false;
+        commandQueue.sendEvent(6);
+        commandQueue.setReceiver(receiver);
+
+        assertThat(received).containsExactly(1, 2, 3, 4);
+        assertThat(tasks).hasSize(1);
+
+        while(!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+
+        assertThat(received).containsExactly(1, 2, 3, 4, 5, 6);
+    }
+
+    @Test
+    public void drainDurationLimitsDrainByClock() {
+        final long[] now = new long[]{0L};
+        final List<Runnable> tasks = new ArrayList<>();
+
+        final CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().drainExecutor(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                tasks.add(command);
+            }
+        }).maxDrainDuration(10L, TimeUnit.MILLISECONDS).clock(new CommandQueue.Clock() {
+            @Override
+            public long nanoTime() {
+                return now[0];
+            }
+        }).build();
+
+        final List<Integer> received = new ArrayList<>();
+        CommandQueue.Receiver<Integer> receiver = new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+                now[0] += TimeUnit.MILLISECONDS.toNanos(4L);
+            }
+        };
+
+        for(int i = 1; i <= 4; i++) {
+            commandQueue.sendEvent(i);
+        }
+        commandQueue.setReceiver(receiver);
+
+        assertThat(received).containsExactly(1, 2, 3);
+
+        commandQueue.detachReceiver();
+        tasks.remove(0).run();
+        assertThat(received).containsExactly(1, 2, 3);
+
+        commandQueue.setReceiver(receiver);
+        assertThat(received).containsExactly(1, 2, 3, 4);
+    }
+
+    @Test
+    public void drainBudgetWithoutDrainExecutorIsRejected() {
+        try {
+            new CommandQueue.Builder<Object>().maxEventsPerDrain(10).build();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void asyncDeliveryDeliversInOrderWithSingleTaskSubmission() {
+        final List<Runnable> tasks = new ArrayList<>();
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().deliverOn(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                tasks.add(command);
+            }
+        }).build();
+
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        });
+        for(int i = 1; i <= 5; i++) {
+            commandQueue.sendEvent(i);
+        }
+
+        assertThat(received).isEmpty();
+        assertThat(tasks).hasSize(1);
+
+        tasks.remove(0).run();
+
+        assertThat(received).containsExactly(1, 2, 3, 4, 5);
+        assertThat(tasks).isEmpty();
+    }
+
+    @Test
+    public void asyncDeliveryIsScheduledAgainAfterDeliveryExecutorThrows() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final boolean[] isRejecting = new boolean[]{true};
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().deliverOn(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                if(isRejecting[0]) {
+                    throw new IllegalStateException("Rejected");
                 }
+                tasks.add(command);
+            }
+        }).build();
 
-                countDownLatch.countDown();
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
             }
-        }).start();
+        });
+        try {
+            commandQueue.sendEvent(1);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+        isRejecting[0] = false;
+        commandQueue.sendEvent(2);
 
-        countDownLatch.await(2000L, TimeUnit.MILLISECONDS);
+        assertThat(tasks).hasSize(1);
 
-        assertThat(sendEventExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
-        assertThat(setReceiverExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
-        assertThat(setPausedExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
-        assertThat(detachReceiverExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
+        tasks.remove(0).run();
+
+        assertThat(received).containsExactly(1, 2);
+    }
+
+    @Test
+    public void asyncDeliveryReleasesDetachedReceiver()
+            throws InterruptedException {
+        final List<Runnable> tasks = new ArrayList<>();
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().deliverOn(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                tasks.add(command);
+            }
+        }).build();
+
+        final List<Integer> received = new ArrayList<>();
+        CommandQueue.Receiver<Integer> receiver = new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        };
+        WeakReference<CommandQueue.Receiver<Integer>> receiverRef = new WeakReference<>(receiver);
+        commandQueue.setReceiver(receiver);
+        commandQueue.sendEvent(1);
+        commandQueue.detachReceiver();
+        while(!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        receiver = null;
+
+        for(int i = 0; i < 20 && receiverRef.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+
+        assertThat(received).containsExactly(1);
+        assertThat(receiverRef.get()).isNull();
+    }
+
+    @Test
+    public void asyncDeliveryEnqueuesEventsWhileHandoffIsFull() {
+        final List<Runnable> deliveryTasks = new ArrayList<>();
+        final List<Runnable> drainTasks = new ArrayList<>();
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().deliverOn(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                deliveryTasks.add(command);
+            }
+        }, 2).drainExecutor(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                drainTasks.add(command);
+            }
+        }).build();
+
+        final List<List<Integer>> batches = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.BatchReceiver<Integer>() {
+            @Override
+            public void receiveCommands(@Nonnull List<Integer> commands) {
+                batches.add(new ArrayList<>(commands));
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                throw new AssertionError("Async delivery batches every command");
+            }
+        });
+        for(int i = 1; i <= 5; i++) {
+            commandQueue.sendEvent(i);
+        }
+
+        assertThat(commandQueue.isDeliveryBackpressured()).isTrue();
+
+        deliveryTasks.remove(0).run();
+
+        assertThat(batches).containsExactly(Arrays.asList(1, 2));
+        assertThat(commandQueue.isDeliveryBackpressured()).isFalse();
+        assertThat(drainTasks).hasSize(1);
+
+        drainTasks.remove(0).run();
+        deliveryTasks.remove(0).run();
+        drainTasks.remove(0).run();
+        deliveryTasks.remove(0).run();
+
+        assertThat(batches).containsExactly(Arrays.asList(1, 2), Arrays.asList(3, 4), Arrays.asList(5));
+    }
+
+    @Test
+    public void selectiveReceiverLeavesDeclinedEventsEnqueuedInOrder() {
+        CommandQueue<Object> commandQueue = new CommandQueue<>();
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent(1);
+        commandQueue.sendEvent("b");
+        commandQueue.sendEvent(2L);
+        commandQueue.sendEvent(3);
+
+        final List<Object> strings = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.SelectiveReceiver<Object>() {
+            @Override
+            public boolean accepts(@Nonnull Class<?> commandClass) {
+                return commandClass == String.class;
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                strings.add(command);
+            }
+        });
+        commandQueue.sendEvent("c");
+        commandQueue.sendEvent(4);
+
+        assertThat(strings).containsExactly("a", "b", "c");
+
+        final List<Object> numbers = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.SelectiveReceiver<Object>() {
+            @Override
+            public boolean accepts(@Nonnull Class<?> commandClass) {
+                return commandClass == Integer.class;
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                numbers.add(command);
+            }
+        });
+        commandQueue.sendEvent(5);
+
+        assertThat(numbers).containsExactly(1, 3, 4, 5);
+
+        final List<Object> rest = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Object>() {
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                rest.add(command);
+            }
+        });
+
+        assertThat(rest).containsExactly(2L);
+    }
+
+    @Test
+    public void eventsDeclinedBySelectiveReceiverCountTowardLimit() {
+        final List<Object> dropped = new ArrayList<>();
+        CommandQueue<Object> commandQueue = new CommandQueue.Builder<Object>().limit(3, CommandQueue.OverflowPolicy.DROP_OLDEST)
+                .onOverflow(new CommandQueue.OverflowListener<Object>() {
+                    @Override
+                    public void onEventDropped(@Nonnull Object event) {
+                        dropped.add(event);
+                    }
+                })
+                .build();
+
+        final List<Object> strings = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.SelectiveReceiver<Object>() {
+            @Override
+            public boolean accepts(@Nonnull Class<?> commandClass) {
+                return commandClass == String.class;
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                strings.add(command);
+            }
+        });
+        for(int i = 1; i <= 1000; i++) {
+            commandQueue.sendEvent(i);
+        }
+        commandQueue.sendEvent("a");
+
+        assertThat(strings).containsExactly("a");
+        assertThat(dropped).hasSize(997);
+        assertThat(dropped.get(0)).isEqualTo(1);
+
+        final List<Object> rest = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Object>() {
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                rest.add(command);
+            }
+        });
+
+        assertThat(rest).containsExactly(998, 999, 1000);
+
+        CommandQueue<Object> rejectingCommandQueue = new CommandQueue.Builder<Object>().limit(2, CommandQueue.OverflowPolicy.REJECT)
+                .build();
+        rejectingCommandQueue.setReceiver(new CommandQueue.SelectiveReceiver<Object>() {
+            @Override
+            public boolean accepts(@Nonnull Class<?> commandClass) {
+                return commandClass == String.class;
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+            }
+        });
+        rejectingCommandQueue.sendEvents(1, 2);
+        try {
+            rejectingCommandQueue.sendEvent(3);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            assertThat(e).hasMessageContaining("The command queue is full");
+        }
+    }
+
+    @Test
+    public void persistentQueueKeepsEventsDeclinedBySelectiveBatchReceiver()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+        CommandQueue.Codec<Object> codec = new CommandQueue.Codec<Object>() {
+            @Nonnull
+            @Override
+            public byte[] encode(@Nonnull Object event) {
+                return (event instanceof Integer ? "i" + event : "s" + event).getBytes(Charset.forName("UTF-8"));
+            }
+
+            @Nonnull
+            @Override
+            public Object decode(@Nonnull byte[] bytes) {
+                String value = new String(bytes, Charset.forName("UTF-8"));
+                return value.startsWith("i") ? (Object) Integer.valueOf(value.substring(1)) : value.substring(1);
+            }
+        };
+
+        CommandQueue<Object> commandQueue = new CommandQueue.Builder<Object>().persistent(file, codec).build();
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent(1);
+        commandQueue.sendEvent("b");
+
+        abstract class SelectiveBatchReceiver
+                implements CommandQueue.SelectiveReceiver<Object>, CommandQueue.BatchReceiver<Object> {
+        }
+        final List<List<Object>> batches = new ArrayList<>();
+        commandQueue.setReceiver(new SelectiveBatchReceiver() {
+            @Override
+            public boolean accepts(@Nonnull Class<?> commandClass) {
+                return commandClass == String.class;
+            }
+
+            @Override
+            public void receiveCommands(@Nonnull List<Object> commands) {
+                batches.add(new ArrayList<>(commands));
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                batches.add(Collections.singletonList(command));
+            }
+        });
+
+        assertThat(batches).containsExactly(Collections.<Object>singletonList("a"), Collections.<Object>singletonList("b"));
+
+        final List<Object> restored = new ArrayList<>();
+        CommandQueue<Object> restoredCommandQueue = new CommandQueue.Builder<Object>().persistent(file, codec).build();
+        restoredCommandQueue.setReceiver(new CommandQueue.Receiver<Object>() {
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                restored.add(command);
+            }
+        });
+
+        assertThat(restored).containsExactly(1);
+    }
+
+    private static class ManualScheduler
+            implements CommandQueue.Scheduler, CommandQueue.Clock {
+        long now = 0L;
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long> deadlines = new ArrayList<>();
+
+        @Override
+        public void schedule(@Nonnull Runnable task, long delayNanos) {
+            tasks.add(task);
+            deadlines.add(now + delayNanos);
+        }
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        void advanceTo(long millis) {
+            now = TimeUnit.MILLISECONDS.toNanos(millis);
+            for(int i = 0; i < tasks.size(); i++) {
+                if(deadlines.get(i) <= now) {
+                    deadlines.remove(i);
+                    tasks.remove(i).run();
+                    i = -1; // the task may have scheduled another one
+                }
+            }
+        }
+    }
+
+    @Test
+    public void delayedEventsAreSentInDeadlineOrderThroughTheQueue() {
+        ManualScheduler scheduler = new ManualScheduler();
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().scheduler(scheduler)
+                .clock(scheduler)
+                .build();
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        };
+        commandQueue.setReceiver(receiver);
+        commandQueue.sendEventDelayed("sooner", 100L, TimeUnit.MILLISECONDS);
+        commandQueue.sendEventDelayed("later", 500L, TimeUnit.MILLISECONDS);
+        commandQueue.sendEventDelayed("middle", 300L, TimeUnit.MILLISECONDS);
+        commandQueue.sendEventDelayed("now", 0L, TimeUnit.MILLISECONDS);
+
+        assertThat(received).containsExactly("now");
+        assertThat(commandQueue.getDelayedEventCount()).isEqualTo(3);
+        assertThat(scheduler.tasks).hasSize(1); // a single wakeup for the earliest deadline
+
+        scheduler.advanceTo(100L);
+        assertThat(received).containsExactly("now", "sooner");
+
+        commandQueue.setPaused(true);
+        scheduler.advanceTo(1000L);
+        assertThat(received).containsExactly("now", "sooner");
+
+        commandQueue.setPaused(false);
+        assertThat(received).containsExactly("now", "sooner", "middle", "later");
+        assertThat(commandQueue.getDelayedEventCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void debounceByKeySendsOnlyLatestEventAfterWindow() {
+        ManualScheduler scheduler = new ManualScheduler();
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().scheduler(scheduler)
+                .clock(scheduler)
+                .debounceBy(new CommandQueue.KeySelector<String>() {
+                    @Override
+                    public Object getKey(@Nonnull String event) {
+                        return event.startsWith("search") ? "search" : null;
+                    }
+                }, 300L, TimeUnit.MILLISECONDS)
+                .build();
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+        commandQueue.sendEvent("search a");
+        scheduler.advanceTo(200L);
+        commandQueue.sendEvent("search ab");
+        commandQueue.sendEvent("other");
+        scheduler.advanceTo(400L);
+
+        assertThat(received).containsExactly("other");
+
+        scheduler.advanceTo(500L);
+
+        assertThat(received).containsExactly("other", "search ab");
+    }
+
+    @Test
+    public void debounceByKeySkipsDueEventReplacedByEarlierDueEvent() {
+        ManualScheduler scheduler = new ManualScheduler();
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().scheduler(scheduler)
+                .clock(scheduler)
+                .debounceBy(new CommandQueue.KeySelector<String>() {
+                    @Override
+                    public Object getKey(@Nonnull String event) {
+                        return event.substring(0, 1);
+                    }
+                }, 300L, TimeUnit.MILLISECONDS)
+                .build();
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+                if(command.equals("trigger")) {
+                    commandQueue.sendEvent("k-new");
+                }
+            }
+        });
+        commandQueue.sendEvent("trigger");
+        scheduler.advanceTo(100L);
+        commandQueue.sendEvent("k-old");
+        scheduler.advanceTo(500L); // both are due, and the trigger replaces k-old before it is dispatched
+
+        assertThat(received).containsExactly("trigger");
+
+        scheduler.advanceTo(800L);
+
+        assertThat(received).containsExactly("trigger", "k-new");
+        assertThat(commandQueue.getDelayedEventCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void throttleByKeyDiscardsEventsWithinWindow() {
+        ManualScheduler scheduler = new ManualScheduler();
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().scheduler(scheduler)
+                .clock(scheduler)
+                .throttleBy(new CommandQueue.KeySelector<String>() {
+                    @Override
+                    public Object getKey(@Nonnull String event) {
+                        return "toast";
+                    }
+                }, 1L, TimeUnit.SECONDS)
+                .build();
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+        commandQueue.sendEvent("toast 1");
+        scheduler.advanceTo(500L);
+        commandQueue.sendEvent("toast 2");
+        scheduler.advanceTo(1000L);
+        commandQueue.sendEvent("toast 3");
+
+        assertThat(received).containsExactly("toast 1", "toast 3");
+        assertThat(commandQueue.getDelayedEventCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void coalesceByKeepsOnlyLatestEnqueuedEventPerKeyInPlace() {
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().coalesceBy(new CommandQueue.KeySelector<String>() {
+            @Override
+            public Object getKey(@Nonnull String event) {
+                int separator = event.indexOf('=');
+                return separator == -1 ? null : event.substring(0, separator);
+            }
+        }).build();
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        };
+
+        commandQueue.sendEvent("progress=1");
+        commandQueue.sendEvent("title=a");
+        commandQueue.sendEvent("toast");
+        commandQueue.sendEvent("progress=2");
+        commandQueue.sendEvent("toast");
+        commandQueue.sendEvent("progress=3");
+        commandQueue.sendEvent("title=b");
+
+        commandQueue.setReceiver(receiver);
+        assertThat(received).containsExactly("progress=3", "title=b", "toast", "toast");
+
+        commandQueue.sendEvent("progress=4");
+        assertThat(received).containsExactly("progress=3", "title=b", "toast", "toast", "progress=4");
+
+        received.clear();
+        commandQueue.setPaused(true);
+        commandQueue.sendEvent("progress=5");
+        commandQueue.sendEvent("progress=6");
+        commandQueue.setPaused(false);
+        assertThat(received).containsExactly("progress=6");
+    }
+
+    @Test
+    public void dropOldestOverflowPolicyKeepsLatestEventsAndReportsDrops() {
+        final List<Integer> dropped = new ArrayList<>();
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().limit(3, CommandQueue.OverflowPolicy.DROP_OLDEST)
+                .onOverflow(new CommandQueue.OverflowListener<Integer>() {
+                    @Override
+                    public void onEventDropped(@Nonnull Integer event) {
+                        dropped.add(event);
+                    }
+                })
+                .build();
+
+        final List<Integer> received = new ArrayList<>();
+        CommandQueue.Receiver<Integer> receiver = new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        };
+
+        for(int i = 1; i <= 5; i++) {
+            commandQueue.sendEvent(i);
+        }
+        commandQueue.setReceiver(receiver);
+
+        assertThat(received).containsExactly(3, 4, 5);
+        assertThat(dropped).containsExactly(1, 2);
+    }
+
+    @Test
+    public void dropNewestOverflowPolicyReportsDrops() {
+        final List<Integer> dropped = new ArrayList<>();
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().limit(2)
+                .onOverflow(new CommandQueue.OverflowListener<Integer>() {
+                    @Override
+                    public void onEventDropped(@Nonnull Integer event) {
+                        dropped.add(event);
+                    }
+                })
+                .build();
+
+        for(int i = 1; i <= 4; i++) {
+            commandQueue.sendEvent(i);
+        }
+
+        assertThat(dropped).containsExactly(3, 4);
+    }
+
+    @Test
+    public void rejectOverflowPolicyThrowsWhenFull() {
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().limit(1, CommandQueue.OverflowPolicy.REJECT)
+                .build();
+
+        commandQueue.sendEvent(1);
+        try {
+            commandQueue.sendEvent(2);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            assertThat(e).hasMessageContaining("The command queue is full");
+        }
+
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        });
+        assertThat(received).containsExactly(1);
+    }
+
+    @Test
+    public void metricsAreRecorded() {
+        final long[] now = new long[]{0L};
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().recordMetrics()
+                .distinctOnly()
+                .limit(3)
+                .clock(new CommandQueue.Clock() {
+                    @Override
+                    public long nanoTime() {
+                        return now[0];
+                    }
+                })
+                .build();
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        };
+
+        commandQueue.sendEvent("a");
+        now[0] = 10L;
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("b");
+        commandQueue.sendEvent("c"); // dropped
+        now[0] = 30L;
+
+        CommandQueue.Metrics metrics = commandQueue.getMetrics();
+        assertThat(metrics.getQueueDepth()).isEqualTo(3);
+        assertThat(metrics.getOldestQueuedNanos()).isEqualTo(30L);
+        assertThat(metrics.getEnqueuedCount()).isEqualTo(3L);
+        assertThat(metrics.getDroppedCount()).isEqualTo(1L);
+
+        commandQueue.setReceiver(receiver);
+        commandQueue.sendEvent("d");
+
+        metrics = commandQueue.getMetrics();
+        assertThat(received).containsExactly("a", "b", "d");
+        assertThat(metrics.getQueueDepth()).isEqualTo(0);
+        assertThat(metrics.getHighWaterMark()).isEqualTo(3);
+        assertThat(metrics.getOldestQueuedNanos()).isEqualTo(0L);
+        assertThat(metrics.getDeliveredCount()).isEqualTo(3L);
+        assertThat(metrics.getDeduplicatedCount()).isEqualTo(1L);
+        assertThat(metrics.getMaxQueuedNanos()).isEqualTo(30L);
+        assertThat(metrics.getAverageQueuedNanos()).isEqualTo((30L + 20L + 20L) / 3);
+    }
+
+    @Test
+    public void metricsAreOnlyAvailableIfRecorded() {
+        try {
+            new CommandQueue<Object>().getMetrics();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void expiredEventsAreNotEmitted() {
+        final long[] now = new long[]{0L};
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().recordMetrics()
+                .timeToLive(10L, TimeUnit.NANOSECONDS)
+                .clock(new CommandQueue.Clock() {
+                    @Override
+                    public long nanoTime() {
+                        return now[0];
+                    }
+                })
+                .build();
+
+        final List<String> received = new ArrayList<>();
+
+        commandQueue.sendEvent("a");
+        now[0] = 5L;
+        commandQueue.sendEvent("b");
+        now[0] = 12L;
+
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("b");
+        assertThat(commandQueue.getExpiredEventCount()).isEqualTo(1L);
+        assertThat(commandQueue.getMetrics().getExpiredCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void coalescedEventExpiresByTheTimeOfTheReplacingEvent() {
+        final long[] now = new long[]{0L};
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().recordMetrics()
+                .timeToLive(1L, TimeUnit.SECONDS)
+                .coalesceBy(new CommandQueue.KeySelector<String>() {
+                    @Override
+                    public Object getKey(@Nonnull String event) {
+                        return event.substring(0, 1);
+                    }
+                })
+                .clock(new CommandQueue.Clock() {
+                    @Override
+                    public long nanoTime() {
+                        return now[0];
+                    }
+                })
+                .build();
+
+        final List<String> received = new ArrayList<>();
+
+        commandQueue.sendEvent("k1");
+        now[0] = TimeUnit.MILLISECONDS.toNanos(900L);
+        commandQueue.sendEvent("k2");
+        now[0] = TimeUnit.MILLISECONDS.toNanos(1000L);
+
+        assertThat(commandQueue.getMetrics().getOldestQueuedNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100L));
+
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("k2");
+        assertThat(commandQueue.getExpiredEventCount()).isEqualTo(0L);
+        assertThat(commandQueue.getMetrics().getMaxQueuedNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100L));
+    }
+
+    @Test
+    public void eventsExpireByTheirOwnTimeToLive() {
+        final long[] now = new long[]{0L};
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().timeToLive(new CommandQueue.TimeToLive<String>() {
+            @Override
+            public long getTimeToLiveNanos(@Nonnull String event) {
+                return event.startsWith("toast") ? 10L : Long.MAX_VALUE;
+            }
+        }).clock(new CommandQueue.Clock() {
+            @Override
+            public long nanoTime() {
+                return now[0];
+            }
+        }).build();
+
+        final List<String> received = new ArrayList<>();
+
+        commandQueue.sendEvent("toast 1");
+        commandQueue.sendEvent("navigate");
+        commandQueue.sendEvent("toast 2");
+        now[0] = Long.MAX_VALUE / 2;
+
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("navigate");
+        assertThat(commandQueue.getExpiredEventCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void expiredEventsArePurgedWhenTheBufferIsFull() {
+        final long[] now = new long[]{0L};
+
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().limit(2, CommandQueue.OverflowPolicy.REJECT)
+                .timeToLive(10L, TimeUnit.NANOSECONDS)
+                .clock(new CommandQueue.Clock() {
+                    @Override
+                    public long nanoTime() {
+                        return now[0];
+                    }
+                })
+                .build();
+
+        commandQueue.sendEvent(1);
+        commandQueue.sendEvent(2);
+        now[0] = 10L;
+        commandQueue.sendEvent(3); // not rejected, because the expired events make room for it
+
+        assertThat(commandQueue.getExpiredEventCount()).isEqualTo(2L);
+
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        });
+        assertThat(received).containsExactly(3);
+    }
+
+    @Test
+    public void timeToLiveMustBePositive() {
+        try {
+            new CommandQueue.Builder<Object>().timeToLive(0L, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+
+    private static class MutableCommand {
+        int value;
+    }
+
+    private static class MutableCommandRecycler
+            implements CommandQueue.Recycler<MutableCommand> {
+        int createdCount;
+
+        @Nonnull
+        @Override
+        public MutableCommand create() {
+            createdCount++;
+            return new MutableCommand();
+        }
+
+        @Override
+        public void recycle(@Nonnull MutableCommand command) {
+            command.value = 0;
+        }
+    }
+
+    @Test
+    public void pooledCommandsAreReusedAfterDelivery() {
+        MutableCommandRecycler recycler = new MutableCommandRecycler();
+        CommandQueue<MutableCommand> commandQueue = new CommandQueue.Builder<MutableCommand>().pooled(recycler, 4).build();
+
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<MutableCommand>() {
+            @Override
+            public void receiveCommand(@Nonnull MutableCommand command) {
+                received.add(command.value);
+            }
+        });
+
+        MutableCommand first = commandQueue.obtainCommand();
+        first.value = 1;
+        commandQueue.sendEvent(first);
+
+        MutableCommand second = commandQueue.obtainCommand();
+        assertThat(second).isSameAs(first);
+        assertThat(second.value).isEqualTo(0);
+        second.value = 2;
+        commandQueue.sendEvent(second);
+
+        assertThat(received).containsExactly(1, 2);
+        assertThat(recycler.createdCount).isEqualTo(1);
+    }
+
+    @Test
+    public void pooledCommandsAreReusedAfterBatchDelivery() {
+        MutableCommandRecycler recycler = new MutableCommandRecycler();
+        CommandQueue<MutableCommand> commandQueue = new CommandQueue.Builder<MutableCommand>().pooled(recycler, 4).build();
+
+        for(int i = 1; i <= 3; i++) {
+            MutableCommand command = commandQueue.obtainCommand();
+            command.value = i;
+            commandQueue.sendEvent(command);
+        }
+
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.BatchReceiver<MutableCommand>() {
+            @Override
+            public void receiveCommands(@Nonnull List<MutableCommand> commands) {
+                for(MutableCommand command : commands) {
+                    received.add(command.value);
+                }
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull MutableCommand command) {
+                received.add(command.value);
+            }
+        });
+
+        assertThat(received).containsExactly(1, 2, 3);
+        for(int i = 0; i < 3; i++) {
+            commandQueue.obtainCommand();
+        }
+        assertThat(recycler.createdCount).isEqualTo(3);
+    }
+
+    @Test
+    public void droppedPooledCommandsAreRecycled() {
+        MutableCommandRecycler recycler = new MutableCommandRecycler();
+        CommandQueue<MutableCommand> commandQueue = new CommandQueue.Builder<MutableCommand>().pooled(recycler, 4)
+                .limit(1)
+                .build();
+
+        MutableCommand first = commandQueue.obtainCommand();
+        commandQueue.sendEvent(first);
+        MutableCommand second = commandQueue.obtainCommand();
+        second.value = 2;
+        commandQueue.sendEvent(second); // dropped
+
+        assertThat(second.value).isEqualTo(0);
+        assertThat(commandQueue.obtainCommand()).isSameAs(second);
+    }
+
+    @Test
+    public void pooledCannotBeCombinedWithDistinctOnly() {
+        try {
+            new CommandQueue.Builder<MutableCommand>().pooled(new MutableCommandRecycler(), 4).distinctOnly().build();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void obtainCommandRequiresPooled() {
+        try {
+            new CommandQueue<Object>().obtainCommand();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void sendEventsEnqueuesInOrderWithoutReceiver() {
+        CommandQueue<Integer> commandQueue = new CommandQueue<>();
+
+        commandQueue.sendEvent(1);
+        commandQueue.sendEvents(2, 3);
+        commandQueue.sendEvents(Arrays.asList(4, 5));
+
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly(1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void sendEventsHandsTheRunToBatchReceiver() {
+        CommandQueue<Integer> commandQueue = new CommandQueue<>();
+        final List<List<Integer>> batches = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.BatchReceiver<Integer>() {
+            @Override
+            public void receiveCommands(@Nonnull List<Integer> commands) {
+                batches.add(new ArrayList<>(commands));
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                batches.add(Collections.singletonList(command));
+            }
+        });
+
+        commandQueue.sendEvents(1, 2, 3);
+
+        assertThat(batches).containsExactly(Arrays.asList(1, 2, 3));
+    }
+
+    @Test
+    public void sendEventsEmitsEventsSentByReceiverInBetween() {
+        final CommandQueue<String> commandQueue = new CommandQueue<>();
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+                if(command.equals("1")) {
+                    commandQueue.sendEvent("X");
+                }
+            }
+        });
+
+        commandQueue.sendEvents("1", "2", "3");
+
+        assertThat(received).containsExactly("1", "X", "2", "3"); // like sendEvent() for each
+    }
+
+    @Test
+    public void sendEventsToLimitedQueueWithReceiverDoesNotDrop() {
+        CommandQueue<Integer> commandQueue = new CommandQueue.Builder<Integer>().limit(2).build();
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        });
+
+        commandQueue.sendEvents(1, 2, 3, 4, 5);
+
+        assertThat(received).containsExactly(1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void sendEventsKeepsTheRestEnqueuedWhenReceiverPauses() {
+        final CommandQueue<Integer> commandQueue = new CommandQueue<>();
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+                if(command == 2) {
+                    commandQueue.setPaused(true);
+                }
+            }
+        });
+
+        commandQueue.sendEvents(1, 2, 3, 4);
+
+        assertThat(received).containsExactly(1, 2);
+
+        commandQueue.setPaused(false);
+
+        assertThat(received).containsExactly(1, 2, 3, 4);
+    }
+
+    @Test
+    public void sendEventsAppliesPerEventFeatures() {
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().coalesceBy(new CommandQueue.KeySelector<String>() {
+            @Override
+            public Object getKey(@Nonnull String event) {
+                return event.substring(0, 1);
+            }
+        }).build();
+
+        commandQueue.sendEvents(Arrays.asList("a1", "b1", "a2"));
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("a2", "b1");
+    }
+
+    @Test
+    public void sendEventsRejectsNullBeforeSendingAny() {
+        CommandQueue<Integer> commandQueue = new CommandQueue<>();
+        try {
+            commandQueue.sendEvents(1, null, 3);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+        assertThat(commandQueue.hasReceiver()).isFalse();
+
+        final List<Integer> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Integer>() {
+            @Override
+            public void receiveCommand(@Nonnull Integer command) {
+                received.add(command);
+            }
+        });
+        assertThat(received).isEmpty();
+    }
+
+    private static class StringCodec
+            implements CommandQueue.Codec<String> {
+        @Nonnull
+        @Override
+        public byte[] encode(@Nonnull String event) {
+            return event.getBytes(Charset.forName("UTF-8"));
+        }
+
+        @Nonnull
+        @Override
+        public String decode(@Nonnull byte[] bytes) {
+            return new String(bytes, Charset.forName("UTF-8"));
+        }
+    }
+
+    @Test
+    public void persistentQueueRestoresUndeliveredEvents()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        };
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec()).build();
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("b");
+        commandQueue.setReceiver(receiver);
+        commandQueue.setPaused(true);
+        commandQueue.sendEvent("c");
+        commandQueue.sendEvent("d");
+
+        assertThat(received).containsExactly("a", "b");
+        commandQueue.close();
+
+        CommandQueue<String> restoredCommandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build(); // as if the process was restarted
+        restoredCommandQueue.setReceiver(receiver);
+
+        assertThat(received).containsExactly("a", "b", "c", "d");
+        restoredCommandQueue.close();
+
+        CommandQueue<String> emptyCommandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build();
+        emptyCommandQueue.setReceiver(receiver);
+
+        assertThat(received).containsExactly("a", "b", "c", "d");
+    }
+
+    @Test
+    public void persistentQueueCannotBeCombinedWithRejectOverflowPolicy()
+            throws IOException {
+        try {
+            new CommandQueue.Builder<String>().persistent(temporaryFolder.newFile(), new StringCodec())
+                    .limit(3, CommandQueue.OverflowPolicy.REJECT)
+                    .build();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void persistentQueueKeepsRecordsThatFailedToRestore()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec()).build();
+        for(int i = 0; i < 5; i++) {
+            commandQueue.sendEvent("e" + i);
+        }
+        commandQueue.close();
+
+        for(int attempt = 0; attempt < 2; attempt++) {
+            try {
+                new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                        .limit(3, CommandQueue.OverflowPolicy.DROP_OLDEST)
+                        .onOverflow(new CommandQueue.OverflowListener<String>() {
+                            @Override
+                            public void onEventDropped(@Nonnull String event) {
+                                throw new IllegalStateException("Listener failed on [" + event + "]");
+                            }
+                        })
+                        .build();
+                Assert.fail();
+            } catch(IllegalStateException e) {
+                assertThat(e).hasMessageContaining("Listener failed on [e0]");
+            }
+        }
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue<String> restoredCommandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build();
+        restoredCommandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("e0", "e1", "e2", "e3", "e4");
+    }
+
+    @Test
+    public void persistentQueueWithCoalescingRestoresLatestEventPerKey()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+
+        CommandQueue.KeySelector<String> keySelector = new CommandQueue.KeySelector<String>() {
+            @Override
+            public Object getKey(@Nonnull String event) {
+                return event.substring(0, 1);
+            }
+        };
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .coalesceBy(keySelector)
+                .build();
+        commandQueue.sendEvent("a1");
+        commandQueue.sendEvent("b1");
+        commandQueue.sendEvent("a2");
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue<String> restoredCommandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .coalesceBy(keySelector)
+                .build();
+        restoredCommandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("b1", "a2");
+    }
+
+    @Test
+    public void persistentQueueRestoresLogWithAdvancedHeadNearCapacity()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+        final int eventCount = 945; // records of 69 bytes, so that the log is nearly full
+
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build();
+        for(int i = 0; i < eventCount; i++) {
+            commandQueue.sendEvent(String.format("%064d", i));
+        }
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+                if(received.size() == 200) {
+                    commandQueue.detachReceiver();
+                }
+            }
+        });
+        assertThat(received).hasSize(200);
+
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        };
+        CommandQueue<String> restoredCommandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build(); // as if the process was restarted
+        restoredCommandQueue.setReceiver(receiver);
+
+        assertThat(received).hasSize(eventCount);
+        for(int i = 0; i < eventCount; i++) {
+            assertThat(received.get(i)).isEqualTo(String.format("%064d", i));
+        }
+
+        CommandQueue<String> emptyCommandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build();
+        emptyCommandQueue.setReceiver(receiver);
+
+        assertThat(received).hasSize(eventCount);
+    }
+
+    @Test
+    public void persistentQueueReclaimsDeliveredEvents()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .syncEvery(100)
+                .build();
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+            }
+        };
+
+        for(int cycle = 0; cycle < 100; cycle++) {
+            for(int i = 0; i < 1000; i++) {
+                commandQueue.sendEvent("event " + i);
+            }
+            commandQueue.setReceiver(receiver);
+            commandQueue.detachReceiver();
+        }
+
+        assertThat(file.length()).isLessThanOrEqualTo(PersistentLog.INITIAL_FILE_SIZE);
+    }
+
+    @Test
+    public void persistentQueueAcknowledgesEventWhoseReceiverThrew()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build();
+        commandQueue.sendEvent("throws");
+        commandQueue.sendEvent("a");
+        try {
+            commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+                @Override
+                public void receiveCommand(@Nonnull String command) {
+                    throw new IllegalStateException("Receiver failed on [" + command + "]");
+                }
+            });
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+            }
+        };
+        for(int cycle = 0; cycle < 100; cycle++) {
+            commandQueue.setReceiver(receiver);
+            commandQueue.detachReceiver();
+            for(int i = 0; i < 1000; i++) {
+                commandQueue.sendEvent("event " + i);
+            }
+        }
+        commandQueue.setReceiver(receiver);
+
+        assertThat(file.length()).isLessThanOrEqualTo(PersistentLog.INITIAL_FILE_SIZE);
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue<String> restoredCommandQueue = new CommandQueue.Builder<String>().persistent(file, new StringCodec())
+                .build();
+        restoredCommandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    public void spillingQueueDeliversEventsInOrderAndDeletesSpilledSegments()
+            throws IOException {
+        File directory = temporaryFolder.newFolder();
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().spillToDisk(10, new StringCodec(), directory)
+                .recordMetrics()
+                .build();
+        for(int i = 0; i < 1000; i++) {
+            commandQueue.sendEvent("event " + i);
+        }
+
+        assertThat(directory.listFiles()).isNotEmpty();
+        assertThat(commandQueue.getMetrics().getQueueDepth()).isEqualTo(1000);
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+                if(received.size() == 500) {
+                    commandQueue.sendEvent("event 1000"); // enqueued behind the spilled events
+                }
+            }
+        };
+        commandQueue.setReceiver(receiver);
+
+        assertThat(received).hasSize(1001);
+        for(int i = 0; i < received.size(); i++) {
+            assertThat(received.get(i)).isEqualTo("event " + i);
+        }
+        assertThat(directory.listFiles()).isEmpty();
+        assertThat(commandQueue.getMetrics().getQueueDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void closingSpillingQueueDeletesSpilledSegments()
+            throws IOException {
+        File directory = temporaryFolder.newFolder();
+
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().spillToDisk(10, new StringCodec(), directory)
+                .build();
+        for(int i = 0; i < 1000; i++) {
+            commandQueue.sendEvent("event " + i);
+        }
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+                if(received.size() == 100) {
+                    commandQueue.detachReceiver(); // in the middle of a segment
+                }
+            }
+        });
+        commandQueue.sendEvent("event 1000"); // to a new segment, behind the read one
+
+        assertThat(directory.listFiles()).isNotEmpty();
+
+        commandQueue.close();
+
+        assertThat(directory.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void spillToDiskCannotBeCombinedWithLimit() {
+        try {
+            new CommandQueue.Builder<String>().spillToDisk(10, new StringCodec()).limit(100).build();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void priorityLanesEmitHighestPriorityFirst() {
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().priorityLanes(3)
+                .priorityClassifier(new CommandQueue.PriorityClassifier<String>() {
+                    @Override
+                    public int getPriority(@Nonnull String event) {
+                        return event.startsWith("navigate") ? 0 : 2;
+                    }
+                })
+                .build();
+
+        commandQueue.sendEvent("toast1");
+        commandQueue.sendEvent("toast2");
+        commandQueue.sendEvent("navigate");
+        commandQueue.sendEvent("dialog", 1);
+        commandQueue.sendEvent("toast3");
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+        commandQueue.sendEvent("toast4");
+
+        assertThat(received).containsExactly("navigate", "dialog", "toast1", "toast2", "toast3", "toast4");
+    }
+
+    @Test
+    public void priorityLanesKeepThePriorityOfDeclinedEvents() {
+        CommandQueue<Object> commandQueue = new CommandQueue.Builder<Object>().priorityLanes(2).build();
+        commandQueue.sendEvent(1, 1);
+        commandQueue.sendEvent(2, 0);
+        commandQueue.setReceiver(new CommandQueue.SelectiveReceiver<Object>() {
+            @Override
+            public boolean accepts(@Nonnull Class<?> commandClass) {
+                return commandClass == String.class;
+            }
+
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+            }
+        });
+        commandQueue.detachReceiver();
+        commandQueue.sendEvent("low", 1);
+        commandQueue.sendEvent("high", 0);
+
+        final List<Object> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<Object>() {
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly(2, "high", 1, "low");
+    }
+
+    @Test
+    public void expiredEventsArePurgedFromEveryPriorityLane() {
+        final long[] now = new long[]{0L};
+
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().priorityLanes(2)
+                .timeToLive(10L, TimeUnit.NANOSECONDS)
+                .clock(new CommandQueue.Clock() {
+                    @Override
+                    public long nanoTime() {
+                        return now[0];
+                    }
+                })
+                .build();
+
+        commandQueue.sendEvent("high", 0);
+        for(int i = 0; i < RingBuffer.INITIAL_UNBOUNDED_LENGTH; i++) {
+            commandQueue.sendEvent("low " + i, 1);
+        }
+        now[0] = 20L;
+        commandQueue.sendEvent("fresh", 1); // the lane is full, so the expired events are purged instead of growing it
+
+        assertThat(commandQueue.getExpiredEventCount()).isEqualTo(RingBuffer.INITIAL_UNBOUNDED_LENGTH + 1);
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("fresh");
+    }
+
+    @Test
+    public void weightedPriorityLanesDoNotStarveLowerPriorities() {
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().weightedPriorityLanes(2, 1).build();
+        for(int i = 0; i < 4; i++) {
+            commandQueue.sendEvent("high" + i, 0);
+            commandQueue.sendEvent("low" + i, 1);
+        }
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("high0", "high1", "low0", "high2", "high3", "low1", "low2", "low3");
+    }
+
+    @Test
+    public void priorityLanesRejectInvalidPriority() {
+        CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().priorityLanes(2).build();
+        try {
+            commandQueue.sendEvent("event", 2);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+        try {
+            new CommandQueue<String>().sendEvent("event", 0);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void commandQueueCanOnlyBeAccessedOnSameThread()
+            throws InterruptedException {
+        final CommandQueue<Object> commandQueue = new CommandQueue<>();
+
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+
+        final Object event = new Object();
+
+        final CommandQueue.Receiver<Object> receiver = new CommandQueue.Receiver<Object>() {
+            @Override
+            public void receiveCommand(@Nonnull Object command) {
+            }
+        };
+
+        final AtomicReference<Throwable> sendEventExceptionRef = new AtomicReference<>();
+        final AtomicReference<Throwable> setReceiverExceptionRef = new AtomicReference<>();
+        final AtomicReference<Throwable> setPausedExceptionRef = new AtomicReference<>();
+        final AtomicReference<Throwable> detachReceiverExceptionRef = new AtomicReference<>();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commandQueue.sendEvent(event);
+                } catch(Throwable e) {
+                    sendEventExceptionRef.set(e);
+                }
+
+                try {
+                    commandQueue.setReceiver(receiver);
+                } catch(Throwable e) {
+                    setReceiverExceptionRef.set(e);
+                }
+
+                try {
+                    commandQueue.setPaused(true);
+                } catch(Throwable e) {
+                    setPausedExceptionRef.set(e);
+                }
+
+                try {
+                    commandQueue.detachReceiver();
+                } catch(Throwable e) {
+                    detachReceiverExceptionRef.set(e);
+                }
+
+                countDownLatch.countDown();
+            }
+        }).start();
+
+        countDownLatch.await(2000L, TimeUnit.MILLISECONDS);
+
+        assertThat(sendEventExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
+        assertThat(setReceiverExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
+        assertThat(setPausedExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
+        assertThat(detachReceiverExceptionRef.get()).hasMessageContaining("can only be accessed on the thread where it was created");
+    }
+
+    @Test
+    public void debugOnlyThreadConfinementDoesNotVerifyWithoutSystemProperty()
+            throws InterruptedException {
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>()
+                .threadConfinement(CommandQueue.ThreadConfinement.DEBUG_ONLY)
+                .build();
+        final AtomicReference<Throwable> exceptionRef = new AtomicReference<>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commandQueue.sendEvent("background");
+                } catch(Throwable e) {
+                    exceptionRef.set(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(exceptionRef.get()).isNull();
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+        assertThat(received).containsExactly("background");
+    }
+
+    @Test
+    public void handOffTransfersOwnershipToTheOtherThread()
+            throws InterruptedException {
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>()
+                .threadConfinement(CommandQueue.ThreadConfinement.HANDOFF)
+                .build();
+        commandQueue.sendEvent("owner");
+
+        final List<String> received = new ArrayList<>();
+        final AtomicReference<Throwable> exceptionRef = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+                        @Override
+                        public void receiveCommand(@Nonnull String command) {
+                            received.add(command);
+                        }
+                    });
+                    commandQueue.sendEvent("worker");
+                } catch(Throwable e) {
+                    exceptionRef.set(e);
+                }
+            }
+        });
+        commandQueue.handOffTo(thread);
+        thread.start();
+        thread.join();
+
+        assertThat(exceptionRef.get()).isNull();
+        assertThat(received).containsExactly("owner", "worker");
+        try {
+            commandQueue.sendEvent("former owner");
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            assertThat(e).hasMessageContaining("or that it was handed off to");
+        }
+    }
+
+    @Test
+    public void handOffRequiresHandoffThreadConfinement() {
+        CommandQueue<String> commandQueue = new CommandQueue<>();
+        try {
+            commandQueue.handOffTo(new Thread());
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void handOffIsNotAllowedInReceiver() {
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>()
+                .threadConfinement(CommandQueue.ThreadConfinement.HANDOFF)
+                .build();
+        final AtomicReference<Throwable> exceptionRef = new AtomicReference<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                try {
+                    commandQueue.handOffTo(new Thread());
+                } catch(Throwable e) {
+                    exceptionRef.set(e);
+                }
+            }
+        });
+
+        commandQueue.sendEvent("a");
+
+        assertThat(exceptionRef.get()).isInstanceOf(IllegalStateException.class);
+        assertThat(commandQueue.hasReceiver()).isTrue(); // still accessible on this thread
+    }
+
+    @Test
+    public void handOffCannotBeCombinedWithMultiProducer() {
+        try {
+            new CommandQueue.Builder<String>()
+                    .threadConfinement(CommandQueue.ThreadConfinement.HANDOFF)
+                    .multiProducer()
+                    .build();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
     }
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentCommandQueueTest {
+    private static class PostingExecutor
+            implements Executor {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void execute(@Nonnull Runnable command) {
+            tasks.add(command);
+        }
+
+        int runAll() {
+            int count = 0;
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                task.run();
+                count++;
+            }
+            return count;
+        }
+    }
+
+    @Test
+    public void builderCreatesConcurrentCommandQueue() {
+        CommandQueue<Object> commandQueue = new CommandQueue.Builder<Object>().multiProducer().build();
+
+        assertThat(commandQueue).isInstanceOf(ConcurrentCommandQueue.class);
+    }
+
+    @Test
+    public void eventsFromOtherThreadsAreDeliveredInProducerOrderOnOwnerThread()
+            throws InterruptedException {
+        final int producerCount = 4;
+        final int eventsPerProducer = 10000;
+
+        final PostingExecutor postingExecutor = new PostingExecutor();
+        final CommandQueue<int[]> commandQueue = new CommandQueue.Builder<int[]>().multiProducer(postingExecutor).build();
+
+        final Thread ownerThread = Thread.currentThread();
+        final List<int[]> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<int[]>() {
+            @Override
+            public void receiveCommand(@Nonnull int[] command) {
+                assertThat(Thread.currentThread()).isSameAs(ownerThread);
+                received.add(command);
+            }
+        });
+
+        final CountDownLatch countDownLatch = new CountDownLatch(producerCount);
+        for(int producer = 0; producer < producerCount; producer++) {
+            final int producerId = producer;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < eventsPerProducer; i++) {
+                        commandQueue.sendEvent(new int[]{producerId, i});
+                    }
+                    countDownLatch.countDown();
+                }
+            }).start();
+        }
+
+        assertThat(countDownLatch.await(10L, TimeUnit.SECONDS)).isTrue();
+        postingExecutor.runAll();
+
+        assertThat(received).hasSize(producerCount * eventsPerProducer);
+        int[] nextExpected = new int[producerCount];
+        for(int[] event : received) {
+            assertThat(event[1]).isEqualTo(nextExpected[event[0]]);
+            nextExpected[event[0]]++;
+        }
+    }
+
+    @Test
+    public void eventsFromOtherThreadsAreOrderedBeforeLaterOwnerEvents()
+            throws InterruptedException {
+        final ConcurrentCommandQueue<String> commandQueue = new ConcurrentCommandQueue<>();
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commandQueue.sendEvent("background1");
+                commandQueue.sendEvent("background2");
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(received).isEmpty();
+
+        commandQueue.sendEvent("owner");
+
+        assertThat(received).containsExactly("background1", "background2", "owner");
+    }
+
+    @Test
+    public void eventsFromOtherThreadsAreBufferedWhileDetached()
+            throws InterruptedException {
+        final PostingExecutor postingExecutor = new PostingExecutor();
+        final ConcurrentCommandQueue<String> commandQueue = new ConcurrentCommandQueue<>(postingExecutor);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commandQueue.sendEvent("background1");
+                commandQueue.sendEvent("background2");
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(postingExecutor.runAll()).isEqualTo(1);
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+
+        assertThat(received).containsExactly("background1", "background2");
+    }
+
+    @Test
+    public void bulkEventsFromOtherThreadsAreDrainedInOneTask()
+            throws InterruptedException {
+        final PostingExecutor postingExecutor = new PostingExecutor();
+        final ConcurrentCommandQueue<String> commandQueue = new ConcurrentCommandQueue<>(postingExecutor);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commandQueue.sendEvents("background1", "background2", "background3");
+            }
+        });
+        thread.start();
+        thread.join();
+
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+        commandQueue.sendEvents("owner");
+
+        assertThat(received).containsExactly("background1", "background2", "background3", "owner");
+        assertThat(postingExecutor.runAll()).isEqualTo(1);
+    }
+
+    @Test
+    public void emittingEventsInReceiverPreservesOrder() {
+        final CommandQueue<CommandQueueTest.Events> queue = new CommandQueue.Builder<CommandQueueTest.Events>().multiProducer()
+                .build();
+
+        final List<CommandQueueTest.Events> eventsList = new ArrayList<>();
+
+        CommandQueue.Receiver<CommandQueueTest.Events> receiver = new CommandQueue.Receiver<CommandQueueTest.Events>() {
+            @Override
+            public void receiveCommand(@Nonnull CommandQueueTest.Events command) {
+                eventsList.add(command);
+                if(command instanceof CommandQueueTest.Events.First) {
+                    queue.detachReceiver();
+                    queue.sendEvent(new CommandQueueTest.Events.Second());
+                    queue.sendEvent(new CommandQueueTest.Events.Third());
+                } else if(command instanceof CommandQueueTest.Events.Second) {
+                    queue.sendEvent(new CommandQueueTest.Events.Third());
+                }
+            }
+        };
+
+        queue.sendEvent(new CommandQueueTest.Events.Fourth());
+        queue.setReceiver(receiver);
+        queue.sendEvent(new CommandQueueTest.Events.First());
+        queue.sendEvent(new CommandQueueTest.Events.Fourth());
+        queue.setReceiver(receiver);
+
+        assertThat(eventsList).containsExactly(new CommandQueueTest.Events.Fourth(),
+                                               new CommandQueueTest.Events.First(),
+                                               new CommandQueueTest.Events.Second(),
+                                               new CommandQueueTest.Events.Third(),
+                                               new CommandQueueTest.Events.Fourth(),
+                                               new CommandQueueTest.Events.Third());
+    }
+
+    @Test
+    public void drainPendingCanOnlyBeCalledOnOwnerThread()
+            throws InterruptedException {
+        final ConcurrentCommandQueue<Object> commandQueue = new ConcurrentCommandQueue<>();
+        final List<Throwable> errors = new ArrayList<>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commandQueue.drainPending();
+                } catch(Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(errors).hasSize(1);
+        assertThat(errors.get(0)).hasMessageContaining("can only be accessed on the thread where it was created");
+    }
+
+    @Test
+    public void builderRejectsMultiProducerWithRejectOverflowPolicy() {
+        try {
+            new CommandQueue.Builder<Object>().multiProducer().limit(1, CommandQueue.OverflowPolicy.REJECT).build();
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void priorityIsVerifiedOnTheProducerThread()
+            throws InterruptedException {
+        final CommandQueue<String> commandQueue = new CommandQueue.Builder<String>().multiProducer()
+                .priorityLanes(2)
+                .build();
+        final CommandQueue<String> commandQueueWithoutLanes = new CommandQueue.Builder<String>().multiProducer().build();
+        final List<Throwable> errors = new ArrayList<>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commandQueue.sendEvent("a", 7);
+                } catch(Throwable e) {
+                    errors.add(e);
+                }
+                try {
+                    commandQueueWithoutLanes.sendEvent("b", 0);
+                } catch(Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(errors).hasSize(2);
+        assertThat(errors.get(0)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(errors.get(1)).isInstanceOf(IllegalStateException.class);
+
+        final List<String> received = new ArrayList<>();
+        CommandQueue.Receiver<String> receiver = new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        };
+        commandQueue.setReceiver(receiver);
+        commandQueueWithoutLanes.setPaused(true);
+
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    public void drainIsScheduledAgainAfterConsumerExecutorThrows()
+            throws InterruptedException {
+        final PostingExecutor postingExecutor = new PostingExecutor();
+        final boolean[] isRejecting = new boolean[]{true};
+        final ConcurrentCommandQueue<String> commandQueue = new ConcurrentCommandQueue<>(new Executor() {
+            @Override
+            public void execute(@Nonnull Runnable command) {
+                if(isRejecting[0]) {
+                    throw new IllegalStateException("Rejected");
+                }
+                postingExecutor.execute(command);
+            }
+        });
+        final List<String> received = new ArrayList<>();
+        commandQueue.setReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add(command);
+            }
+        });
+        final List<Throwable> errors = new ArrayList<>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commandQueue.sendEvent("background1");
+                } catch(Throwable e) {
+                    errors.add(e);
+                }
+                isRejecting[0] = false;
+                commandQueue.sendEvent("background2");
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(errors).hasSize(1);
+        assertThat(postingExecutor.runAll()).isEqualTo(1);
+        assertThat(received).containsExactly("background1", "background2");
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MulticastCommandQueueTest {
+    private static class RecordingReceiver
+            implements CommandQueue.Receiver<String> {
+        final List<String> received = new ArrayList<>();
+
+        @Override
+        public void receiveCommand(@Nonnull String command) {
+            received.add(command);
+        }
+    }
+
+    @Test
+    public void eventsAreEnqueuedForFirstReceiver() {
+        MulticastCommandQueue<String> commandQueue = new MulticastCommandQueue<>();
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("b");
+
+        RecordingReceiver first = new RecordingReceiver();
+        commandQueue.addReceiver(first);
+        RecordingReceiver second = new RecordingReceiver();
+        commandQueue.addReceiver(second);
+        commandQueue.sendEvent("c");
+
+        assertThat(first.received).containsExactly("a", "b", "c");
+        assertThat(second.received).containsExactly("c");
+        assertThat(commandQueue.getBufferedEventCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void pausedReceiverReplaysMissedEventsWhileOthersKeepReceiving() {
+        MulticastCommandQueue<String> commandQueue = new MulticastCommandQueue<>();
+        RecordingReceiver first = new RecordingReceiver();
+        RecordingReceiver second = new RecordingReceiver();
+        commandQueue.addReceiver(first);
+        commandQueue.addReceiver(second);
+
+        commandQueue.setPaused(second, true);
+        commandQueue.sendEvent("a");
+        commandQueue.sendEvent("b");
+
+        assertThat(first.received).containsExactly("a", "b");
+        assertThat(second.received).isEmpty();
+        assertThat(commandQueue.getBufferedEventCount()).isEqualTo(2);
+
+        commandQueue.setPaused(second, false);
+
+        assertThat(second.received).containsExactly("a", "b");
+        assertThat(commandQueue.getBufferedEventCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void removingSlowestReceiverReclaimsEvents() {
+        MulticastCommandQueue<String> commandQueue = new MulticastCommandQueue<>();
+        RecordingReceiver first = new RecordingReceiver();
+        RecordingReceiver second = new RecordingReceiver();
+        commandQueue.addReceiver(first);
+        commandQueue.addReceiver(second);
+        commandQueue.setPaused(second, true);
+        commandQueue.sendEvent("a");
+
+        commandQueue.removeReceiver(second);
+
+        assertThat(commandQueue.getBufferedEventCount()).isEqualTo(0);
+        assertThat(commandQueue.hasReceiver(second)).isFalse();
+
+        commandQueue.removeReceiver(first);
+        commandQueue.sendEvent("b");
+        RecordingReceiver third = new RecordingReceiver();
+        commandQueue.addReceiver(third);
+
+        assertThat(third.received).containsExactly("b");
+    }
+
+    @Test
+    public void eventSentByReceiverAfterRemovingItselfIsEnqueuedForNextReceiver() {
+        final MulticastCommandQueue<String> commandQueue = new MulticastCommandQueue<>();
+        commandQueue.addReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                commandQueue.removeReceiver(this);
+                commandQueue.sendEvent("b");
+            }
+        });
+
+        commandQueue.sendEvent("a");
+
+        assertThat(commandQueue.getReceiverCount()).isEqualTo(0);
+        assertThat(commandQueue.getBufferedEventCount()).isEqualTo(1);
+
+        RecordingReceiver next = new RecordingReceiver();
+        commandQueue.addReceiver(next);
+
+        assertThat(next.received).containsExactly("b");
+    }
+
+    @Test
+    public void eventsSentByReceiverAreDeliveredInOrderToEveryReceiver() {
+        final MulticastCommandQueue<String> commandQueue = new MulticastCommandQueue<>();
+        final List<String> received = new ArrayList<>();
+        commandQueue.addReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add("first " + command);
+                if(command.equals("a")) {
+                    commandQueue.sendEvent("b");
+                }
+            }
+        });
+        commandQueue.addReceiver(new CommandQueue.Receiver<String>() {
+            @Override
+            public void receiveCommand(@Nonnull String command) {
+                received.add("second " + command);
+            }
+        });
+
+        commandQueue.sendEvent("a");
+
+        assertThat(received).containsExactly("first a", "first b", "second a", "second b");
+    }
+}
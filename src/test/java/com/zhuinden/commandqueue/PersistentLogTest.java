@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersistentLogTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static class IntegerCodec
+            implements CommandQueue.Codec<Integer> {
+        @Nonnull
+        @Override
+        public byte[] encode(@Nonnull Integer event) {
+            return ByteBuffer.allocate(64).putInt(0, event).array(); // padded, so that the log fills up quickly
+        }
+
+        @Nonnull
+        @Override
+        public Integer decode(@Nonnull byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getInt(0);
+        }
+    }
+
+    private static List<Integer> readLiveEvents(File file)
+            throws IOException {
+        List<Integer> events = new ArrayList<>();
+        PersistentLog.open(file, new IntegerCodec(), 0).readLiveRecords(events);
+        return events;
+    }
+
+    @Test
+    public void acknowledgedRecordsAreCompactedBeforeTheFileGrows()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+        PersistentLog<Integer> persistentLog = PersistentLog.open(file, new IntegerCodec(), 0);
+
+        int recordsPerFile = PersistentLog.INITIAL_FILE_SIZE / 69;
+        int liveCount = recordsPerFile / 4;
+        long sequence = 0;
+        for(; sequence < liveCount; sequence++) {
+            persistentLog.append(sequence, (int) sequence);
+        }
+        persistentLog.acknowledge(0, liveCount / 2);
+        assertThat(persistentLog.head()).isGreaterThan(PersistentLog.HEADER_SIZE);
+
+        for(; sequence < recordsPerFile * 3; sequence++) { // three files worth of records, with a quarter file live
+            persistentLog.append(sequence, (int) sequence);
+            if(sequence - liveCount >= liveCount / 2) { // the first half is acknowledged already
+                persistentLog.acknowledge(sequence - liveCount, sequence - liveCount + 1);
+            }
+        }
+        assertThat(file.length()).isEqualTo(PersistentLog.INITIAL_FILE_SIZE);
+        assertThat(persistentLog.liveBytes()).isEqualTo(liveCount * 69);
+
+        persistentLog.replace(sequence - liveCount, -1);
+        persistentLog.acknowledge(sequence - liveCount + 1, sequence - 10);
+
+        List<Integer> events = readLiveEvents(file);
+        List<Integer> expected = new ArrayList<>();
+        for(long i = sequence - 10; i < sequence; i++) {
+            expected.add((int) i);
+        }
+        expected.add(-1);
+        assertThat(events).isEqualTo(expected);
+    }
+
+    @Test
+    public void fileGrowsWhenLiveRecordsDoNotFit()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+        PersistentLog<Integer> persistentLog = PersistentLog.open(file, new IntegerCodec(), 10);
+
+        int count = PersistentLog.INITIAL_FILE_SIZE / 69 * 3;
+        for(int i = 0; i < count; i++) {
+            persistentLog.append(i, i);
+        }
+        persistentLog.acknowledge(0, count - 1);
+
+        assertThat(file.length()).isGreaterThan(PersistentLog.INITIAL_FILE_SIZE);
+        assertThat(readLiveEvents(file)).containsExactly(count - 1);
+
+        persistentLog.acknowledge(count - 1, count);
+        assertThat(persistentLog.head()).isEqualTo(PersistentLog.HEADER_SIZE);
+        assertThat(persistentLog.tail()).isEqualTo(PersistentLog.HEADER_SIZE);
+        assertThat(readLiveEvents(file)).isEmpty();
+    }
+
+    @Test
+    public void liveRecordAtTheHeadDoesNotKeepAcknowledgedRecordsFromBeingReclaimed()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+        PersistentLog<Integer> persistentLog = PersistentLog.open(file, new IntegerCodec(), 0);
+
+        persistentLog.append(0, -1); // never acknowledged
+        int recordsPerFile = PersistentLog.INITIAL_FILE_SIZE / 69;
+        for(int sequence = 1; sequence <= recordsPerFile * 10; sequence++) {
+            persistentLog.append(sequence, sequence);
+            if(sequence % 2 == 0) {
+                persistentLog.acknowledge(sequence - 1, sequence + 1);
+            }
+        }
+
+        assertThat(file.length()).isEqualTo(PersistentLog.INITIAL_FILE_SIZE);
+        assertThat(persistentLog.liveBytes()).isEqualTo(69);
+        assertThat(readLiveEvents(file)).containsExactly(-1);
+    }
+
+    @Test
+    public void closedLogCanBeOpenedAgain()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+        PersistentLog<Integer> persistentLog = PersistentLog.open(file, new IntegerCodec(), 10);
+        persistentLog.append(0, 1);
+        persistentLog.append(1, 2);
+        persistentLog.acknowledge(0, 1);
+
+        persistentLog.close();
+        persistentLog.close();
+
+        assertThat(readLiveEvents(file)).containsExactly(2);
+    }
+
+    @Test
+    public void fileThatIsNotALogIsRejected()
+            throws IOException {
+        File file = temporaryFolder.newFile();
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        fileOutputStream.write(new byte[100]);
+        fileOutputStream.close();
+
+        try {
+            PersistentLog.open(file, new IntegerCodec(), 0);
+            Assert.fail();
+        } catch(IOException e) {
+            assertThat(e).hasMessageContaining("not a command queue log");
+        }
+    }
+}
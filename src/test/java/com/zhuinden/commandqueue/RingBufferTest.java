@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RingBufferTest {
+    @Test
+    public void boundedBufferRejectsElementsWhenFull() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(2);
+
+        assertThat(ringBuffer.offer(1)).isTrue();
+        assertThat(ringBuffer.offer(2)).isTrue();
+        assertThat(ringBuffer.isFull()).isTrue();
+        assertThat(ringBuffer.offer(3)).isFalse();
+
+        assertThat(ringBuffer.poll()).isEqualTo(1);
+        assertThat(ringBuffer.offer(4)).isTrue();
+        assertThat(ringBuffer).containsExactly(2, 4);
+    }
+
+    @Test
+    public void offerFirstAddsBeforeTheHeadAndGrows() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>();
+        ringBuffer.enableStamps();
+        for(int i = 0; i < RingBuffer.INITIAL_UNBOUNDED_LENGTH; i++) {
+            ringBuffer.offer(i, i);
+        }
+        long headSequence = ringBuffer.headSequence();
+
+        assertThat(ringBuffer.offerFirst(-1, 100L)).isTrue(); // grows
+
+        assertThat(ringBuffer.headSequence()).isEqualTo(headSequence - 1);
+        assertThat(ringBuffer.getStamp(headSequence - 1)).isEqualTo(100L);
+        assertThat(ringBuffer.poll()).isEqualTo(-1);
+        assertThat(ringBuffer.poll()).isEqualTo(0);
+
+        RingBuffer<Integer> boundedRingBuffer = new RingBuffer<>(1);
+        boundedRingBuffer.offer(1);
+
+        assertThat(boundedRingBuffer.offerFirst(0, 0L)).isFalse();
+    }
+
+    @Test
+    public void offerAllCopiesAcrossWrapAroundUpToCapacity() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(6);
+        ringBuffer.offer(0);
+        ringBuffer.offer(1);
+        ringBuffer.offer(2);
+        ringBuffer.poll();
+        ringBuffer.poll();
+
+        assertThat(ringBuffer.offerAll(new Object[]{9, 3, 4, 5, 6, 7, 8}, 1, 6)).isEqualTo(5); // wraps around
+
+        assertThat(ringBuffer).containsExactly(2, 3, 4, 5, 6, 7);
+        assertThat(ringBuffer.offerAll(new Object[]{8}, 0, 1)).isEqualTo(0);
+    }
+
+    @Test
+    public void offerAllGrowsUnboundedBufferOnce() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>();
+        Object[] elements = new Object[100];
+        for(int i = 0; i < elements.length; i++) {
+            elements[i] = i;
+        }
+
+        assertThat(ringBuffer.offerAll(elements, 0, elements.length)).isEqualTo(100);
+
+        assertThat(ringBuffer.length()).isEqualTo(100);
+        for(int i = 0; i < 100; i++) {
+            assertThat(ringBuffer.poll()).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void unboundedBufferGrowsAndKeepsOrderAcrossWrapAround() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>();
+
+        for(int i = 0; i < 10; i++) {
+            ringBuffer.offer(i);
+        }
+        for(int i = 0; i < 8; i++) {
+            assertThat(ringBuffer.poll()).isEqualTo(i);
+        }
+        for(int i = 10; i < 100; i++) {
+            ringBuffer.offer(i); // wraps around, then grows
+        }
+
+        assertThat(ringBuffer.size()).isEqualTo(92);
+        for(int i = 8; i < 100; i++) {
+            assertThat(ringBuffer.poll()).isEqualTo(i);
+        }
+        assertThat(ringBuffer.poll()).isNull();
+    }
+
+    @Test
+    public void unboundedBufferReusesSmallArraysAndShrinksAfterLargeDrains() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>();
+
+        for(int cycle = 0; cycle < 3; cycle++) {
+            for(int i = 0; i < RingBuffer.INITIAL_UNBOUNDED_LENGTH; i++) {
+                ringBuffer.offer(i);
+            }
+            while(!ringBuffer.isEmpty()) {
+                ringBuffer.poll();
+            }
+            assertThat(ringBuffer.length()).isEqualTo(RingBuffer.INITIAL_UNBOUNDED_LENGTH);
+        }
+
+        int count = RingBuffer.MAX_PREALLOCATED_CAPACITY * 16;
+        for(int i = 0; i < count; i++) {
+            ringBuffer.offer(i);
+        }
+        assertThat(ringBuffer.length()).isGreaterThanOrEqualTo(count);
+
+        for(int i = 0; i < count; i++) {
+            assertThat(ringBuffer.poll()).isEqualTo(i);
+        }
+        assertThat(ringBuffer.length()).isEqualTo(RingBuffer.MAX_PREALLOCATED_CAPACITY);
+    }
+
+    @Test
+    public void sequencesAddressElementsUntilTheyArePolled() {
+        RingBuffer<String> ringBuffer = new RingBuffer<>();
+
+        ringBuffer.offer("a");
+        long sequence = ringBuffer.tailSequence();
+        ringBuffer.offer("b");
+        ringBuffer.offer("c");
+
+        assertThat(ringBuffer.get(sequence)).isEqualTo("b");
+        ringBuffer.set(sequence, "B");
+        assertThat(ringBuffer).containsExactly("a", "B", "c");
+
+        ringBuffer.poll();
+        ringBuffer.poll();
+        assertThat(ringBuffer.containsSequence(sequence)).isFalse();
+        assertThat(ringBuffer.headSequence()).isEqualTo(sequence + 1);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RoutingReceiverTest {
+    private interface Urgent {
+    }
+
+    private static class UrgentFirst
+            extends CommandQueueTest.Events.First
+            implements Urgent {
+    }
+
+    public static class UnloadableFirst
+            extends CommandQueueTest.Events.First {
+    }
+
+    // defines its own copy of UnloadableFirst, which can be unloaded along with the class loader
+    private static class IsolatingClassLoader
+            extends ClassLoader {
+        IsolatingClassLoader() {
+            super(RoutingReceiverTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            if(!name.equals(UnloadableFirst.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            try(InputStream inputStream = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+                byte[] bytes = outputStream.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            } catch(IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    @Test
+    public void commandsAreRoutedToHandlerOfTheirClass() {
+        final List<String> handled = new ArrayList<>();
+
+        RoutingReceiver<CommandQueueTest.Events> receiver = new RoutingReceiver.Builder<CommandQueueTest.Events>()
+                .on(CommandQueueTest.Events.First.class, new RoutingReceiver.Handler<CommandQueueTest.Events.First>() {
+                    @Override
+                    public void handle(@Nonnull CommandQueueTest.Events.First command) {
+                        handled.add("first");
+                    }
+                })
+                .on(CommandQueueTest.Events.Second.class, new RoutingReceiver.Handler<CommandQueueTest.Events.Second>() {
+                    @Override
+                    public void handle(@Nonnull CommandQueueTest.Events.Second command) {
+                        handled.add("second");
+                    }
+                })
+                .fallback(new CommandQueue.Receiver<CommandQueueTest.Events>() {
+                    @Override
+                    public void receiveCommand(@Nonnull CommandQueueTest.Events command) {
+                        handled.add("fallback");
+                    }
+                })
+                .build();
+
+        CommandQueue<CommandQueueTest.Events> commandQueue = new CommandQueue<>();
+        commandQueue.sendEvent(new CommandQueueTest.Events.Second());
+        commandQueue.sendEvent(new CommandQueueTest.Events.Third());
+        commandQueue.sendEvent(new UrgentFirst());
+        commandQueue.setReceiver(receiver);
+        commandQueue.sendEvent(new CommandQueueTest.Events.First());
+
+        assertThat(handled).containsExactly("second", "fallback", "first", "first");
+    }
+
+    @Test
+    public void nearestSuperclassWinsOverInterface() {
+        final List<String> handled = new ArrayList<>();
+
+        RoutingReceiver<Object> receiver = new RoutingReceiver.Builder<Object>()
+                .on(Urgent.class, new RoutingReceiver.Handler<Urgent>() {
+                    @Override
+                    public void handle(@Nonnull Urgent command) {
+                        handled.add("urgent");
+                    }
+                })
+                .on(CommandQueueTest.Events.class, new RoutingReceiver.Handler<CommandQueueTest.Events>() {
+                    @Override
+                    public void handle(@Nonnull CommandQueueTest.Events command) {
+                        handled.add("events");
+                    }
+                })
+                .on(Runnable.class, new RoutingReceiver.Handler<Runnable>() {
+                    @Override
+                    public void handle(@Nonnull Runnable command) {
+                        handled.add("runnable");
+                    }
+                })
+                .build();
+
+        receiver.receiveCommand(new UrgentFirst());
+        receiver.receiveCommand(new Thread());
+
+        assertThat(handled).containsExactly("events", "runnable");
+        assertThat(receiver.hasHandler("string")).isFalse();
+    }
+
+    @Test
+    public void unhandledCommandsStayEnqueuedForNextReceiver() {
+        final List<String> handled = new ArrayList<>();
+
+        RoutingReceiver<CommandQueueTest.Events> navigationReceiver = new RoutingReceiver.Builder<CommandQueueTest.Events>()
+                .on(CommandQueueTest.Events.First.class, new RoutingReceiver.Handler<CommandQueueTest.Events.First>() {
+                    @Override
+                    public void handle(@Nonnull CommandQueueTest.Events.First command) {
+                        handled.add("first");
+                    }
+                })
+                .keepUnhandledEnqueued()
+                .build();
+
+        CommandQueue<CommandQueueTest.Events> commandQueue = new CommandQueue<>();
+        commandQueue.sendEvent(new CommandQueueTest.Events.Second());
+        commandQueue.sendEvent(new CommandQueueTest.Events.First());
+        commandQueue.setReceiver(navigationReceiver);
+        commandQueue.sendEvent(new CommandQueueTest.Events.Third());
+        commandQueue.sendEvent(new CommandQueueTest.Events.First());
+
+        assertThat(handled).containsExactly("first", "first");
+
+        commandQueue.setReceiver(new CommandQueue.Receiver<CommandQueueTest.Events>() {
+            @Override
+            public void receiveCommand(@Nonnull CommandQueueTest.Events command) {
+                handled.add(command.getClass().getSimpleName());
+            }
+        });
+
+        assertThat(handled).containsExactly("first", "first", "Second", "Third");
+    }
+
+    @Test
+    public void unhandledCommandWithoutFallbackThrows() {
+        RoutingReceiver<Object> receiver = new RoutingReceiver.Builder<Object>().build();
+        try {
+            receiver.receiveCommand("string");
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void resolvedHandlersDoNotKeepCommandClassesLoaded()
+            throws Exception {
+        final List<String> handled = new ArrayList<>();
+
+        RoutingReceiver<CommandQueueTest.Events> receiver = new RoutingReceiver.Builder<CommandQueueTest.Events>()
+                .on(CommandQueueTest.Events.First.class, new RoutingReceiver.Handler<CommandQueueTest.Events.First>() {
+                    @Override
+                    public void handle(@Nonnull CommandQueueTest.Events.First command) {
+                        handled.add("first");
+                    }
+                })
+                .build();
+
+        WeakReference<Class<?>> commandClassRef = receiveIsolatedCommand(receiver);
+
+        for(int i = 0; i < 20 && commandClassRef.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+
+        assertThat(handled).containsExactly("first");
+        assertThat(commandClassRef.get()).isNull();
+    }
+
+    private static WeakReference<Class<?>> receiveIsolatedCommand(RoutingReceiver<CommandQueueTest.Events> receiver)
+            throws Exception {
+        Class<?> commandClass = new IsolatingClassLoader().loadClass(UnloadableFirst.class.getName());
+        assertThat(commandClass).isNotSameAs(UnloadableFirst.class);
+        receiver.receiveCommand((CommandQueueTest.Events) commandClass.newInstance());
+        return new WeakReference<Class<?>>(commandClass);
+    }
+}
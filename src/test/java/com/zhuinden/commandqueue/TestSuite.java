@@ -23,6 +23,6 @@ import org.junit.runners.Suite;
  * Created by Owner on 2017. 01. 17..
  */
 @RunWith(Suite.class)
-@Suite.SuiteClasses({CommandQueueTest.class, CommandQueueMockitoTest.class})
+@Suite.SuiteClasses({CommandQueueTest.class, CommandQueueMockitoTest.class, RingBufferTest.class, ConcurrentCommandQueueTest.class, PersistentLogTest.class, MulticastCommandQueueTest.class, RoutingReceiverTest.class, TimerWheelTest.class, CommandQueueStressTest.class, CommandQueueGroupTest.class, CommandQueuePublisherTest.class})
 public class TestSuite {
 }
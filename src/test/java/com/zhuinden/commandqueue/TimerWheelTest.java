@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.commandqueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimerWheelTest {
+    private static final long TICK = 1000L;
+
+    @Test
+    public void timersAreDueInDeadlineOrderAcrossLevels() {
+        TimerWheel<Long> timerWheel = new TimerWheel<>(TICK, 0L);
+        Random random = new Random(42L);
+        List<Long> deadlines = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) {
+            long deadline = (1L + random.nextInt(1 << 20)) * TICK; // spans the first four levels
+            deadlines.add(deadline);
+            timerWheel.schedule(deadline, null, deadline);
+        }
+
+        List<TimerWheel.Timer<Long>> due = new ArrayList<>();
+        long now = 0L;
+        int checkedCount = 0;
+        while(!timerWheel.isEmpty()) {
+            now = timerWheel.nextWorkNanos();
+            timerWheel.advance(now, due);
+            for(; checkedCount < due.size(); checkedCount++) {
+                assertThat(due.get(checkedCount).event).isEqualTo(now); // never early, never late
+            }
+        }
+
+        assertThat(due).hasSize(1000);
+        for(int i = 1; i < due.size(); i++) {
+            assertThat(due.get(i).deadlineTick).isGreaterThanOrEqualTo(due.get(i - 1).deadlineTick);
+        }
+    }
+
+    @Test
+    public void advancingPastSeveralDeadlinesReturnsThemInOrder() {
+        TimerWheel<String> timerWheel = new TimerWheel<>(TICK, 0L);
+        timerWheel.schedule("c", null, 5000L * TICK);
+        timerWheel.schedule("a", null, 3L * TICK);
+        timerWheel.schedule("b", null, 70L * TICK);
+        timerWheel.schedule("a2", null, 3L * TICK);
+
+        List<TimerWheel.Timer<String>> due = new ArrayList<>();
+        timerWheel.advance(10000L * TICK, due);
+
+        List<String> events = new ArrayList<>();
+        for(TimerWheel.Timer<String> timer : due) {
+            events.add(timer.event);
+        }
+        assertThat(events).containsExactly("a", "a2", "b", "c");
+        assertThat(timerWheel.isEmpty()).isTrue();
+        assertThat(timerWheel.nextWorkNanos()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void cancelledTimersAreNotDue() {
+        TimerWheel<String> timerWheel = new TimerWheel<>(TICK, 0L);
+        TimerWheel.Timer<String> cancelled = timerWheel.schedule("cancelled", null, 100L * TICK);
+        timerWheel.schedule("kept", null, 200L * TICK);
+
+        timerWheel.cancel(cancelled);
+        timerWheel.cancel(cancelled);
+
+        assertThat(timerWheel.size()).isEqualTo(1);
+
+        List<TimerWheel.Timer<String>> due = new ArrayList<>();
+        timerWheel.advance(300L * TICK, due);
+
+        assertThat(due).hasSize(1);
+        assertThat(due.get(0).event).isEqualTo("kept");
+    }
+}